@@ -0,0 +1,39 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Measures multi-leg transfers of the lock engine with
+ * {@link TransferBenchmark} as the number of legs grows. Every account of a
+ * transfer stays locked until all its legs are applied, so the lock hold
+ * time and the chance of waiting on another task grow with the fan-out.
+ * Transfers per second count legs, each a debit and a credit of the
+ * transfer amount, divide by the legs for multi-leg transfers per second.
+ * The single leg baseline is a plain transfer locking its two accounts in
+ * the same order.
+ *
+ * Options are those of TransferBenchmark, given options replace the
+ * defaults. Run from the repository root with
+ * <tt>java -cp out FanOutBenchmark [options]</tt>.
+ *
+ */
+public class FanOutBenchmark {
+
+  /* Default TransferBenchmark options */
+  private final static String[] DEFAULTS = {
+      "--threads=1,8,32",
+      "--accounts=1000,100000",
+      "--strategies="
+          + "engine=lock,balance=cents,locking=ordered;"
+          + "engine=lock,balance=cents,legs=2;"
+          + "engine=lock,balance=cents,legs=4;"
+          + "engine=lock,balance=cents,legs=8;"
+          + "engine=lock,balance=cents,legs=16" };
+
+  public static void main(String... args) {
+    List<String> options = new ArrayList<String>(Arrays.asList(DEFAULTS));
+    options.addAll(Arrays.asList(args));
+    TransferBenchmark.main(options.toArray(new String[options.size()]));
+  }
+}
@@ -0,0 +1,39 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Compares the packed and padded account layouts of the engines with
+ * {@link TransferBenchmark}. A small account table is used so tasks keep
+ * updating neighbouring accounts, with the packed layout they share cache
+ * lines, with the padded one they do not. The lock engine runs with cents
+ * balances so decimal allocations do not hide the layout. The thread counts
+ * go past the number of cores to show how the false sharing cost grows
+ * with the number of writers.
+ *
+ * Options are those of TransferBenchmark, given options replace the
+ * defaults. Run from the repository root with
+ * <tt>java -cp out LayoutBenchmark [options]</tt>.
+ *
+ */
+public class LayoutBenchmark {
+
+  /* Default TransferBenchmark options */
+  private final static String[] DEFAULTS = {
+      "--threads=2,8,32,64,128",
+      "--accounts=256",
+      "--strategies="
+          + "engine=lock,balance=cents,layout=packed;"
+          + "engine=lock,balance=cents,layout=padded;"
+          + "engine=cas,layout=packed;engine=cas,layout=padded;"
+          + "engine=offheap,layout=packed;engine=offheap,layout=padded;"
+          + "engine=partitioned,layout=packed;"
+          + "engine=partitioned,layout=padded" };
+
+  public static void main(String... args) {
+    List<String> options = new ArrayList<String>(Arrays.asList(DEFAULTS));
+    options.addAll(Arrays.asList(args));
+    TransferBenchmark.main(options.toArray(new String[options.size()]));
+  }
+}
@@ -0,0 +1,249 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Throughput benchmark of the AccountSimulator transfer path, structured like
+ * a JMH benchmark. Every combination of thread count, account count, transfer
+ * amount and strategy gets warm-up iterations, whose results are discarded,
+ * followed by measured iterations. Each iteration runs a freshly initialized
+ * simulator for a fixed time, so initialization is not measured. As with
+ * the JMH forks, every combination runs in freshly started JVMs by
+ * default, so the code compiled and the garbage left by one combination do
+ * not skew the next one.
+ *
+ * A strategy is a comma separated list of simulator options without their
+ * leading dashes, strategies are separated by semicolons, for example
+ * <tt>--strategies=engine=lock,locking=ordered;engine=cas</tt>.
+ *
+ * Build and run from the repository root with
+ * <tt>javac -d out src/*.java bench/*.java</tt> and
+ * <tt>java -cp out TransferBenchmark [options]</tt>.
+ *
+ */
+public class TransferBenchmark {
+
+  /* Usage message */
+  private final static String USAGE =
+      "Usage: TransferBenchmark [options]\n"
+      + "  --threads=<n,...>       thread counts (default 1,8)\n"
+      + "  --accounts=<n,...>      account counts (default 10000)\n"
+      + "  --amounts=<amt,...>     transfer amounts (default 1.00)\n"
+      + "  --strategies=<s;...>    simulator options per strategy\n"
+      + "                          (default engine=lock;engine=cas)\n"
+      + "  --warmup=<n>            warm-up iterations (default 3)\n"
+      + "  --iterations=<n>        measured iterations (default 5)\n"
+      + "  --time-ms=<n>           time per iteration (default 1000)\n"
+      + "  --forks=<n>             JVMs per combination, their iterations\n"
+      + "                          are pooled, 0 runs in this JVM (default 1)\n"
+      + "  --jvm-args=<args>       space separated options of the forked JVMs";
+
+  /* Specified warm-up and measured iteration counts */
+  private final int warmup, iterations;
+
+  /* Specified time per iteration in milliseconds */
+  private final int iterationMillis;
+
+  /* Specified JVMs per combination, 0 to run in this JVM */
+  private final int forks;
+
+  /* Specified options of the forked JVMs */
+  private final List<String> jvmArgs;
+
+  private TransferBenchmark(int warmup, int iterations, int iterationMillis,
+      int forks, List<String> jvmArgs) {
+    this.warmup = warmup;
+    this.iterations = iterations;
+    this.iterationMillis = iterationMillis;
+    this.forks = forks;
+    this.jvmArgs = jvmArgs;
+  }
+
+  /** Runs the iterations of one parameter combination, in forked JVMs
+   *  unless forks is 0, and prints a result row.
+   *
+   * @param tc The number of threads.
+   * @param numAccounts The number of accounts.
+   * @param amt The transfer amount.
+   * @param strategy The simulator options of the strategy.
+   * @throws InterruptedException if a task was interrupted while waiting.
+   * @throws ExecutionException if a computation threw an exception.
+   * @throws IOException if a journal could not be written.
+   */
+  private void run(int tc, int numAccounts, BigDecimal amt, String strategy)
+      throws InterruptedException, ExecutionException, IOException {
+    double[] rates;
+    if (forks == 0) {
+      rates = measure(tc, numAccounts, amt, strategy);
+    } else {
+      rates = new double[forks * iterations];
+      for (int f = 0; f < forks; f++)
+        System.arraycopy(fork(tc, numAccounts, amt, strategy), 0, rates,
+            f * iterations, iterations);
+    }
+    double mean = 0;
+    for (double r : rates)
+      mean += r;
+    mean /= rates.length;
+    double var = 0;
+    for (double r : rates)
+      var += (r - mean) * (r - mean);
+    double stdev = rates.length > 1
+        ? Math.sqrt(var / (rates.length - 1)) : 0;
+    System.out.println(String.format("%7d %9d %8s %14.0f %12.0f %10.1f  %s",
+        tc, numAccounts, amt, mean, stdev,
+        tc * (double) TimeUnit.SECONDS.toNanos(1) / mean, strategy));
+  }
+
+  /** Runs the warm-up and measured iterations of one parameter combination
+   *  in this JVM.
+   *
+   * @param tc The number of threads.
+   * @param numAccounts The number of accounts.
+   * @param amt The transfer amount.
+   * @param strategy The simulator options of the strategy.
+   * @return The transfers per second of the measured iterations.
+   * @throws InterruptedException if a task was interrupted while waiting.
+   * @throws ExecutionException if a computation threw an exception.
+   * @throws IOException if a journal could not be written.
+   */
+  private double[] measure(int tc, int numAccounts, BigDecimal amt,
+      String strategy)
+      throws InterruptedException, ExecutionException, IOException {
+    long iterationNanos = TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+    double[] rates = new double[iterations];
+    for (int i = -warmup; i < iterations; i++) {
+      AccountSimulator simulator = AccountSimulator.getInstance(tc, amt,
+          numAccounts, strategyOptions(strategy));
+      long start = System.nanoTime();
+      long transfers = simulator.runFor(iterationNanos);
+      long elapsed = System.nanoTime() - start;
+      if (i >= 0)
+        rates[i] = transfers * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+    return rates;
+  }
+
+  /** Runs the warm-up and measured iterations of one parameter combination
+   *  in a new JVM with the class path of this one. The forked benchmark
+   *  prints the transfers per second of each measured iteration on a line.
+   *
+   * @param tc The number of threads.
+   * @param numAccounts The number of accounts.
+   * @param amt The transfer amount.
+   * @param strategy The simulator options of the strategy.
+   * @return The transfers per second of the measured iterations.
+   * @throws InterruptedException if interrupted waiting for the JVM.
+   * @throws IOException if the JVM could not be started or failed.
+   */
+  private double[] fork(int tc, int numAccounts, BigDecimal amt,
+      String strategy) throws InterruptedException, IOException {
+    List<String> command = new ArrayList<String>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java")
+        .toString());
+    command.addAll(jvmArgs);
+    command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+        TransferBenchmark.class.getName(), "--threads=" + tc,
+        "--accounts=" + numAccounts, "--amounts=" + amt,
+        "--strategies=" + strategy, "--warmup=" + warmup,
+        "--iterations=" + iterations, "--time-ms=" + iterationMillis,
+        "--forks=0", "--forked=true"));
+    Process process = new ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        process.getInputStream(), StandardCharsets.UTF_8));
+    try {
+      for (String line; (line = in.readLine()) != null; )
+        lines.add(line);
+    } finally {
+      in.close();
+    }
+    int status = process.waitFor();
+    double[] rates = new double[iterations];
+    try {
+      if (status == 0 && lines.size() == iterations) {
+        for (int i = 0; i < iterations; i++)
+          rates[i] = Double.parseDouble(lines.get(i));
+        return rates;
+      }
+    } catch (NumberFormatException nfe) {
+      /* Reported with the output below */
+    }
+    throw new IOException("Forked benchmark exited with " + status
+        + (lines.isEmpty() ? "" : ": " + lines.get(0)));
+  }
+
+  private static SimulatorOptions strategyOptions(String strategy) {
+    List<String> args = new ArrayList<String>();
+    for (String option : strategy.split(",")) {
+      if (!option.isEmpty())
+        args.add("--" + option);
+    }
+    return SimulatorOptions.parse(args.toArray(new String[args.size()]), 0);
+  }
+
+  public static void main(String... args) {
+    try {
+      SimulatorOptions options = SimulatorOptions.parse(args, 0);
+      String[] threads = options.get("threads", "1,8").split(",");
+      String[] accounts = options.get("accounts", "10000").split(",");
+      String[] amounts = options.get("amounts", "1.00").split(",");
+      String[] strategies =
+          options.get("strategies", "engine=lock;engine=cas").split(";");
+      String jvmArgs = options.get("jvm-args", "").trim();
+      TransferBenchmark benchmark = new TransferBenchmark(
+          options.getInt("warmup", 3), options.getInt("iterations", 5),
+          options.getInt("time-ms", 1000), options.getInt("forks", 1),
+          jvmArgs.isEmpty() ? new ArrayList<String>()
+                            : Arrays.asList(jvmArgs.split("\\s+")));
+      boolean forked = options.getBoolean("forked", false);
+      options.checkUnknown();
+      if (benchmark.iterations < 1 || benchmark.warmup < 0
+          || benchmark.iterationMillis <= 0 || benchmark.forks < 0)
+        throw new IllegalArgumentException(
+            "Iterations and time must be positive, warm-up and forks "
+            + "not negative");
+      if (forked) {
+        for (double rate : benchmark.measure(Integer.decode(threads[0]),
+            Integer.decode(accounts[0]), new BigDecimal(amounts[0]),
+            strategies[0]))
+          System.out.println(rate);
+        return;
+      }
+      System.out.println(String.format("%7s %9s %8s %14s %12s %10s  %s",
+          "threads", "accounts", "amt", "transfers/s", "stdev",
+          "ns/op", "strategy"));
+      for (String strategy : strategies)
+        for (String amount : amounts)
+          for (String numAccounts : accounts)
+            for (String tc : threads)
+              benchmark.run(Integer.decode(tc), Integer.decode(numAccounts),
+                  new BigDecimal(amount).setScale(2, RoundingMode.HALF_UP),
+                  strategy);
+    } catch (IllegalArgumentException iae) {
+      System.out.println(iae.getMessage());
+      System.out.println(USAGE);
+      System.exit(1);
+    } catch (InterruptedException ie) {
+      System.out.println(ie.getMessage());
+      ie.printStackTrace();
+    } catch (ExecutionException e) {
+      System.out.println(e.getMessage());
+      e.printStackTrace();
+    } catch (IOException ioe) {
+      System.out.println(ioe.getMessage());
+      ioe.printStackTrace();
+    }
+  }
+}
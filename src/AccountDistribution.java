@@ -0,0 +1,178 @@
+/**
+ * Distribution of the account indexes a transfer task selects. A
+ * distribution is immutable, holds everything that can be precomputed and
+ * is shared by all tasks, each task draws from its own {@link Selector}.
+ * Distributions are specified as one of:
+ * <ul>
+ * <li><tt>uniform</tt> every account equally likely</li>
+ * <li><tt>zipf[:theta]</tt> Zipfian over account indexes, index zero the
+ *     hottest, theta in (0, 1) defaults to 0.99</li>
+ * <li><tt>hot[:accounts%:ops%]</tt> the given percentage of operations go
+ *     to the given percentage of accounts at the lowest indexes, defaults to
+ *     20:80</li>
+ * <li><tt>seq</tt> consecutive indexes from a random start per task</li>
+ * </ul>
+ *
+ */
+final class AccountDistribution {
+
+  /**
+   * The kinds of distributions.
+   *
+   */
+  enum Kind {
+    UNIFORM, ZIPF, HOT, SEQ
+  }
+
+  /* Default Zipfian skew, as used by YCSB */
+  private final static double DEFAULT_THETA = 0.99;
+
+  /* Default hot set percentages of accounts and operations */
+  private final static double DEFAULT_HOT_ACCOUNTS = 20, DEFAULT_HOT_OPS = 80;
+
+  private final String spec;
+  private final Kind kind;
+  private final int size;
+
+  /* Zipfian constants of Gray et al., "Quickly Generating Billion-Record
+     Synthetic Databases" */
+  private final double zetan, alpha, eta, half;
+
+  /* Number of hot accounts and probability of selecting one */
+  private final int hotSize;
+  private final double hotProbability;
+
+  private AccountDistribution(String spec, Kind kind, int size, double theta,
+                              double hotAccounts, double hotOps) {
+    this.spec = spec;
+    this.kind = kind;
+    this.size = size;
+    if (kind == Kind.ZIPF) {
+      double z = 0;
+      for (int i = 1; i <= size; i++)
+        z += 1 / Math.pow(i, theta);
+      zetan = z;
+      alpha = 1 / (1 - theta);
+      double zeta2 = 1 + 1 / Math.pow(2, theta);
+      eta = (1 - Math.pow(2.0 / size, 1 - theta)) / (1 - zeta2 / zetan);
+      half = 1 + Math.pow(0.5, theta);
+    } else {
+      zetan = alpha = eta = half = 0;
+    }
+    hotSize = (int) Math.min(size - 1,
+        Math.max(1, Math.round(size * hotAccounts / 100)));
+    hotProbability = hotOps / 100;
+  }
+
+  /** Parses a distribution specification.
+   *
+   * @param spec The specification, see the class description.
+   * @param size The number of accounts, at least two.
+   * @return The distribution.
+   * @throws IllegalArgumentException if the specification is invalid.
+   */
+  static AccountDistribution parse(String spec, int size) {
+    String[] parts = spec.split(":");
+    Kind kind = null;
+    for (Kind k : Kind.values()) {
+      if (k.name().equalsIgnoreCase(parts[0]))
+        kind = k;
+    }
+    int params = kind == Kind.ZIPF ? 1 : kind == Kind.HOT ? 2 : 0;
+    if (kind == null || (parts.length != 1 && parts.length != params + 1))
+      throw new IllegalArgumentException("Invalid distribution: " + spec);
+    double theta = DEFAULT_THETA;
+    double hotAccounts = DEFAULT_HOT_ACCOUNTS, hotOps = DEFAULT_HOT_OPS;
+    if (parts.length > 1) {
+      if (kind == Kind.ZIPF) {
+        theta = Double.parseDouble(parts[1]);
+      } else {
+        hotAccounts = Double.parseDouble(parts[1]);
+        hotOps = Double.parseDouble(parts[2]);
+      }
+    }
+    if (!(theta > 0 && theta < 1))
+      throw new IllegalArgumentException("Zipfian theta must be between 0 "
+          + "and 1 exclusive: " + spec);
+    if (!(hotAccounts > 0 && hotAccounts < 100 && hotOps >= 0
+          && hotOps <= 100))
+      throw new IllegalArgumentException("Hot set percentages out of range: "
+          + spec);
+    return new AccountDistribution(spec, kind, size, theta, hotAccounts,
+        hotOps);
+  }
+
+  /** Creates the selector of a task.
+   *
+   * @param random The generator of the task.
+   * @return A new selector drawing from this distribution.
+   */
+  Selector newSelector(TransferRandom random) {
+    return new Selector(random);
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+
+  /**
+   * Draws account indexes for a single task, without allocating.
+   *
+   */
+  final class Selector {
+    private final TransferRandom random;
+
+    /* Next index of the sequential distribution */
+    private int cursor;
+
+    private Selector(TransferRandom random) {
+      this.random = random;
+      cursor = random.nextInt(size);
+    }
+
+    /** Returns the next account index.
+     *
+     * @return An index in <tt>[0, size)</tt>.
+     */
+    int next() {
+      switch (kind) {
+      case ZIPF:
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if (uz < 1)
+          return 0;
+        if (uz < half)
+          return 1;
+        return Math.min(size - 1,
+            (int) (size * Math.pow(eta * u - eta + 1, alpha)));
+      case HOT:
+        if (random.nextDouble() < hotProbability)
+          return random.nextInt(hotSize);
+        return hotSize + random.nextInt(size - hotSize);
+      case SEQ:
+        int v = cursor;
+        cursor = v + 1 == size ? 0 : v + 1;
+        return v;
+      default:
+        return random.nextInt(size);
+      }
+    }
+
+    /** Returns the next account index other than the excluded one, in a
+     *  single draw. A uniform draw skips the excluded index, the other
+     *  distributions move a collision to the following index.
+     *
+     * @param exclude The index not to return.
+     * @return An index in <tt>[0, size)</tt>.
+     */
+    int nextExcluding(int exclude) {
+      if (kind == Kind.UNIFORM)
+        return random.nextIntExcluding(size, exclude);
+      int v = next();
+      if (v != exclude)
+        return v;
+      return v + 1 == size ? 0 : v + 1;
+    }
+  }
+}
@@ -1,32 +1,66 @@
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 
 /**
  * Muti-threaded simulator to transfer amounts from a source account to
- * destination account until a single account reaches zero balance.
+ * destination account until a single account reaches zero balance, or
+ * another configured stop condition is met.
  *
  */
 public class AccountSimulator {
 
-  /* Maximum number of accounts */
-  private final static int MAX_ACCOUNTS = 10000;
+  /* Maximum number of accounts addressable by an int index and account ID,
+     leaving room for the incomplete last row of the partitioned engine. The
+     memory available usually bounds the accounts further, see
+     maxAccounts() */
+  private final static int MAX_ACCOUNTS = Integer.MAX_VALUE - 50000;
 
   /* Maximum number of threads */
   private final static int MAX_THREADS = 200;
 
+  /* Maximum number of concurrent tasks when running on virtual threads */
+  private final static int MAX_VIRTUAL_TASKS = 50000;
+
+  /* Longs a padded account takes, 128 bytes since the adjacent line
+     prefetcher fetches cache lines in pairs */
+  private final static int PADDED_LONGS = 16;
+
+  /* First Java release with virtual threads */
+  private final static int VIRTUAL_THREADS_RELEASE = 21;
+
   /* Account ids start at this number */
   private final static int ID_BASE = 1000;
 
@@ -36,15 +70,125 @@ public class AccountSimulator {
   /* Zero balance */
   private final static BigDecimal ZERO = new BigDecimal(0.0);
 
-  /* Map of the account IDs to accounts */
-  private final Map<Integer, Account> accounts =
-          new HashMap<Integer, Account>();
+  /* Empty account index before one is found */
+  private final static int NONE = -1;
+
+  /* Stop reasons of the empty condition */
+  private final static String EMPTY_ACCOUNT = "empty account";
+  private final static String EMPTY_ACCOUNTS = "empty accounts";
+
+  /* Transfers a task performs between polls of the stop and pause flags */
+  private final static int POLL_INTERVAL = 64;
+
+  /* Wait of a task between polls of the flags while paused over JMX */
+  private final static long PAUSED_POLL_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(1);
+
+  /* Name of the management bean and number of hottest accounts it lists */
+  private final static String MBEAN_NAME = "AccountSimulator:type=Simulator";
+  private final static int HOTTEST_ACCOUNTS = 10;
+
+  /* Seqlock version of an account balance, see Account */
+  private final static VarHandle ACCOUNT_VERSION;
+
+  static {
+    try {
+      ACCOUNT_VERSION = MethodHandles.lookup().findVarHandle(Account.class,
+          "version", long.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /* Usage message */
+  private final static String USAGE =
+      "Usage: <thead_count> <trans_amt> <number_accts> [options]\n"
+      + "  --engine=lock|cas|partitioned|offheap|occ\n"
+      + "                          transfer engine (default lock)\n"
+      + "  --queue-size=<n>        partitioned engine credit queue (1024)\n"
+      + "  --executor=platform|virtual\n"
+      + "                          threads running the tasks (platform),\n"
+      + "                          virtual allows up to " + MAX_VIRTUAL_TASKS
+      + " tasks\n"
+      + "  --store=array|map       account store (default array)\n"
+      + "  --layout=packed|padded  account layout, padded gives every account\n"
+      + "                          or partition its own cache lines (packed)\n"
+      + "  --balance=decimal|cents balance representation (default decimal)\n"
+      + "  --locking=trylock|ordered|timed\n"
+      + "                          lock acquisition (default trylock)\n"
+      + "  --lock-timeout-us=<n>   bounded wait of the timed locking (100)\n"
+      + "  --backoff=none|spin|yield|park|exp\n"
+      + "                          wait after a failed acquisition (none)\n"
+      + "  --backoff-ns=<n>        base pause of park and exp (1000)\n"
+      + "  --batch=<n>             transfers applied per batch by the lock\n"
+      + "                          engine, one lock per account (1)\n"
+      + "  --legs=<n>              credits of a lock engine transfer, its\n"
+      + "                          source is debited once per leg and all\n"
+      + "                          accounts are updated atomically (1)\n"
+      + "  --readers=<n>           tasks making balance inquiries instead of\n"
+      + "                          transfers, not partitioned engine (0)\n"
+      + "  --seed=<n>              seed of balances and selection (random)\n"
+      + "  --src-dist=<dist>       distribution of the source accounts\n"
+      + "  --dest-dist=<dist>      distribution of the destination accounts,\n"
+      + "                          uniform, zipf[:theta], hot[:acct%:ops%]\n"
+      + "                          or seq (uniform)\n"
+      + "  --latency=true|false    record transfer latencies (false)\n"
+      + "  --progress-ms=<n>       print progress every n ms, 0 is off (0)\n"
+      + "  --progress-format=csv|json\n"
+      + "                          format of the progress lines (csv)\n"
+      + "  --journal=<file>        write a journal of the transfers (off)\n"
+      + "  --journal-sync=none|interval|every\n"
+      + "                          when the journal is synced, transfers\n"
+      + "                          wait for the sync unless none (none)\n"
+      + "  --journal-sync-ms=<n>   interval of the interval sync (10)\n"
+      + "  --journal-sync-records=<n>\n"
+      + "                          records per sync of the every sync (1000)\n"
+      + "  --journal-buffer-kb=<n> journal buffer size per task (64)\n"
+      + "  --checkpoint=<file>     checkpoint the balances to a file (off)\n"
+      + "  --checkpoint-ms=<n>     interval between checkpoints, 0 only\n"
+      + "                          checkpoints at the end (1000)\n"
+      + "  --restart=true|false    start from the checkpoint instead of new\n"
+      + "                          balances (false)\n"
+      + "  --audit-ms=<n>          audit a consistent snapshot of the lock\n"
+      + "                          engine balances every n ms, 0 is off (0)\n"
+      + "  --jmx=true|false        register the " + MBEAN_NAME + "\n"
+      + "                          MBean with live statistics and pause,\n"
+      + "                          resume and stop controls (false)\n"
+      + "  --stop=<cond>,...       conditions ending the run, the first one\n"
+      + "                          met stops it: empty[:k], time:ms,\n"
+      + "                          transfers:n, stable[:ms[:percent]] (empty)";
+
+  /* Engine applying the transfers to the balances */
+  private final TransferEngine engine;
+
+  /* Counter of total transactions performed, striped across threads and
+     summed when reported */
+  private final LongAdder totTransactions = new LongAdder();
+
+  /* Index of the first empty balance account found, NONE until then */
+  private volatile int emptyIndex = NONE;
 
-  /* Counter of total transactions performed */
-  private final AtomicLong totTransactions = new AtomicLong(0);
+  /* Credits and debits of the first empty account when it was found,
+     written before emptyIndex */
+  private long emptyCredits, emptyDebits;
 
-  /* First empty balance account found */
-  private volatile Account emptyAccount;
+  /* Conditions ending a run */
+  private final StopCondition stopCondition;
+
+  /* Set to ask the tasks to stop, polled every pollInterval transfers */
+  private volatile boolean stopping;
+
+  /* Condition or failure that stopped the run, the first one set wins */
+  private final AtomicReference<String> stopReason =
+      new AtomicReference<String>();
+
+  /* Counted down when the run is stopped, wakes the monitoring thread */
+  private final CountDownLatch stopSignal = new CountDownLatch(1);
+
+  /* Bitmap of the accounts found empty and their count, only kept when
+     empty accounts stop the run */
+  private final AtomicLongArray emptySeen;
+  private final AtomicInteger emptyAccounts = new AtomicInteger();
 
   /* Specified thread count and number of accounts */
   private final int threadCount, numberOfAccounts;
@@ -52,18 +196,358 @@ public class AccountSimulator {
   /* Specified transfer amount */
   private final BigDecimal transferAmt;
 
+  /* Specified transfer amount in cents, used by the cents balance mode */
+  private final long transferCents;
+
+  /* Engine selected to apply the transfers */
+  private final EngineType engineType;
+
+  /* Kind of threads the tasks run on */
+  private final ExecutorType executorType;
+
+  /* Whether tasks yield every pollInterval transfers, so that many more
+     tasks than carrier threads all make progress */
+  private final boolean yieldTransfers;
+
+  /* Memory layout of the accounts */
+  private final Layout layout;
+
+  /* Representation of the account balances */
+  private final BalanceMode balanceMode;
+
+  /* How a transfer acquires its two account locks */
+  private final LockStrategy lockStrategy;
+
+  /* Bounded wait in nanoseconds for each lock of the timed strategy */
+  private final long lockTimeout;
+
+  /* Wait after a failed lock acquisition and its base pause in nanoseconds */
+  private final Backoff backoff;
+  private final long backoffNanos;
+
+  /* Capacity of the credit queue of each partition */
+  private final int queueSize;
+
+  /* Number of transfers a lock engine task applies together */
+  private final int batchSize;
+
+  /* Destinations credited by a multi-leg transfer of the lock engine */
+  private final int legs;
+
+  /* Counters of multi-leg transfers applied and of those rejected because
+     the source balance did not cover every leg */
+  private final LongAdder multiLegTransfers = new LongAdder();
+  private final LongAdder insufficientFunds = new LongAdder();
+
+  /* Counter of lock acquisitions that failed or had to wait */
+  private final LongAdder lockFailures = new LongAdder();
+
+  /* Counter of debits retried after a lost compare-and-set */
+  private final LongAdder casRetries = new LongAdder();
+
+  /* Seed of the initial balances and of the account selection */
+  private final long seed;
+
+  /* Distributions the source and destination accounts are drawn from */
+  private final AccountDistribution srcDistribution, destDistribution;
+
+  /* Progress reporting interval in milliseconds, zero when disabled */
+  private final int progressMillis;
+
+  /* Format of the progress lines */
+  private final ProgressReporter.Format progressFormat;
+
+  /* Journal file, null when transfers are not journaled */
+  private final String journalFile;
+
+  /* Journal sync policy, its interval in milliseconds and its record count */
+  private final TransferJournal.Sync journalSync;
+  private final int journalSyncMillis, journalSyncRecords;
+
+  /* Size in bytes of each journal buffer */
+  private final int journalBufferSize;
+
+  /* Transfer amount in cents recorded in the journal and the checkpoints */
+  private final long amountCents;
+
+  /* Transfers a task performs between polls of the flags, every transfer
+     when it waits for the journal syncs as it then performs few */
+  private final int pollInterval;
+
+  /* Journal of the current run, null when not journaling */
+  private TransferJournal journal;
+
+  /* Checkpoint file, null when the balances are not checkpointed */
+  private final String checkpointFile;
+
+  /* Interval between checkpoints in milliseconds, zero when only the final
+     balances are checkpointed */
+  private final int checkpointMillis;
+
+  /* Whether the accounts were restored from the checkpoint file */
+  private final boolean restart;
+
+  /* Transactions counted by the restored checkpoint */
+  private final long restoredTransactions;
+
+  /* Time creating or restoring the accounts took in nanoseconds */
+  private final long initNanos;
+
+  /* Checkpoint file of the current run, null when not checkpointing */
+  private BalanceCheckpoint checkpoint;
+
+  /* Set to ask the tasks to pause for a checkpoint */
+  private volatile boolean pausing;
+
+  /* Parties are the checkpoint writer and the running tasks, null unless
+     checkpoints are written while the tasks run */
+  private Phaser checkpointGate;
+
+  /* Time the tasks were paused for each checkpoint */
+  private final LatencyHistogram checkpointPauses =
+      new LatencyHistogram("checkpoint");
+
+  /* Interval between audits in milliseconds, zero when not auditing */
+  private final int auditMillis;
+
+  /* Epochs of the audit snapshots, null when not auditing */
+  private final SnapshotEpochs snapshots;
+
+  /* Sum of the start balances the audited totals must equal */
+  private BigDecimal auditStartTotal;
+
+  /* Audits performed, those whose total differed from the start total and
+     the first such total, only written by the auditor thread */
+  private long audits, auditMismatches;
+  private BigDecimal mismatchTotal;
+
+  /* Time spent auditing in nanoseconds and transfers completed meanwhile,
+     to compare the throughput during audits with the rest of the run */
+  private long auditNanos, auditTransfers;
+
+  /* Duration of each audit */
+  private final LatencyHistogram auditLatency = new LatencyHistogram("audit");
+
+  /* Number of tasks making balance inquiries rather than transfers */
+  private final int readers;
+
+  /* Counters of balance inquiries and of optimistic reads retried because
+     the balance was updated meanwhile */
+  private final LongAdder inquiries = new LongAdder();
+  private final LongAdder readRetries = new LongAdder();
+
+  /* Whether the run is monitored and controlled over JMX */
+  private final boolean jmx;
+
+  /* Set while the tasks are paused over JMX, polled with the stop flag */
+  private volatile boolean suspended;
+
+  /* Tasks of the run that have not completed yet */
+  private final AtomicInteger activeTasks = new AtomicInteger();
+
+  /* Whether transfer latencies are recorded */
+  private final boolean recordLatency;
+
+  /* Latencies in nanoseconds of acquiring the locks, including failed
+     attempts, of updating the balances and of the whole transfer. Null
+     unless latencies are recorded */
+  private final LatencyHistogram lockLatency, updateLatency, transferLatency;
+
+  /* Latencies in nanoseconds of the balance inquiries, null unless
+     latencies are recorded */
+  private final LatencyHistogram inquiryLatency;
+
   /** Sole constructor. Cannot be instantiated. Initializes the accounts.
    *
    * @param threadCount The number of threads to create.
    * @param transferAmt The amount to transfer between accounts.
    * @param numberOfAccounts The number of accounts to create.
+   * @param options The optional simulator settings.
+   * @throws IllegalArgumentException if an option is unknown or invalid.
    */
   private AccountSimulator(int threadCount, BigDecimal transferAmt,
-                           int numberOfAccounts) {
+                           int numberOfAccounts, SimulatorOptions options) {
     this.threadCount = threadCount;
     this.numberOfAccounts = numberOfAccounts;
     this.transferAmt = transferAmt;
-    initAccounts();
+    AccountStore.Type storeType =
+        options.getEnum("store", AccountStore.Type.class,
+            AccountStore.Type.ARRAY);
+    engineType = options.getEnum("engine", EngineType.class,
+        EngineType.LOCK);
+    executorType = options.getEnum("executor", ExecutorType.class,
+        ExecutorType.PLATFORM);
+    if (executorType == ExecutorType.VIRTUAL
+        && Runtime.version().feature() < VIRTUAL_THREADS_RELEASE)
+      throw new IllegalArgumentException("Virtual threads require Java "
+          + VIRTUAL_THREADS_RELEASE + " or later");
+    yieldTransfers = executorType == ExecutorType.VIRTUAL;
+    layout = options.getEnum("layout", Layout.class, Layout.PACKED);
+    balanceMode = options.getEnum("balance", BalanceMode.class,
+        engineType == EngineType.LOCK ? BalanceMode.DECIMAL
+                                      : BalanceMode.CENTS);
+    if (engineType != EngineType.LOCK && balanceMode != BalanceMode.CENTS)
+      throw new IllegalArgumentException("The "
+          + engineType.name().toLowerCase()
+          + " engine requires cents balances");
+    lockStrategy = options.getEnum("locking", LockStrategy.class,
+        LockStrategy.TRYLOCK);
+    lockTimeout = TimeUnit.MICROSECONDS.toNanos(
+        options.getInt("lock-timeout-us", 100));
+    backoff = options.getEnum("backoff", Backoff.class, Backoff.NONE);
+    backoffNanos = options.getInt("backoff-ns", 1000);
+    queueSize = options.getInt("queue-size", 1024);
+    if (queueSize < 2)
+      throw new IllegalArgumentException("Queue size must be at least 2");
+    if (engineType == EngineType.PARTITIONED && threadCount > numberOfAccounts)
+      throw new IllegalArgumentException(
+          "The partitioned engine needs an account per thread");
+    /* Batches and multi-leg transfers wait for their locks in order */
+    boolean waitingIgnored = lockStrategy != LockStrategy.ORDERED
+        && options.isSet("locking") || options.isSet("lock-timeout-us")
+        || options.isSet("backoff") || options.isSet("backoff-ns");
+    batchSize = options.getInt("batch", 1);
+    if (batchSize < 1)
+      throw new IllegalArgumentException("Batch size must be at least 1");
+    if (batchSize > 1 && engineType != EngineType.LOCK)
+      throw new IllegalArgumentException("Batches require the lock engine");
+    if (batchSize > 1 && waitingIgnored)
+      throw new IllegalArgumentException("Batches lock one account at a "
+          + "time and wait for it, only ordered locking applies to them");
+    legs = options.getInt("legs", 1);
+    if (legs < 1)
+      throw new IllegalArgumentException("Legs must be at least 1");
+    if (legs > 1 && (engineType != EngineType.LOCK || batchSize > 1))
+      throw new IllegalArgumentException(
+          "Multi-leg transfers require the lock engine without batches");
+    if (legs > 1 && waitingIgnored)
+      throw new IllegalArgumentException("Multi-leg transfers lock their "
+          + "accounts in order and wait for them, only ordered locking "
+          + "applies to them");
+    seed = options.getLong("seed", System.nanoTime());
+    srcDistribution = AccountDistribution.parse(
+        options.get("src-dist", "uniform"), numberOfAccounts);
+    destDistribution = AccountDistribution.parse(
+        options.get("dest-dist", "uniform"), numberOfAccounts);
+    progressMillis = options.getInt("progress-ms", 0);
+    progressFormat = options.getEnum("progress-format",
+        ProgressReporter.Format.class, ProgressReporter.Format.CSV);
+    if (progressMillis < 0)
+      throw new IllegalArgumentException(
+          "Progress interval must not be negative");
+    journalFile = options.get("journal", null);
+    journalSync = options.getEnum("journal-sync", TransferJournal.Sync.class,
+        TransferJournal.Sync.NONE);
+    journalSyncMillis = options.getInt("journal-sync-ms", 10);
+    journalSyncRecords = options.getInt("journal-sync-records", 1000);
+    journalBufferSize = options.getInt("journal-buffer-kb", 64) * 1024;
+    if (journalSyncMillis < 1 || journalSyncRecords < 1
+        || journalBufferSize < 1024)
+      throw new IllegalArgumentException(
+          "Journal sync and buffer settings must be at least 1");
+    if (journalFile != null && 2L * journalBufferSize * threadCount
+        > Runtime.getRuntime().maxMemory())
+      throw new IllegalArgumentException(
+          "Journal buffers exceed the available memory, lower the buffer size");
+    pollInterval = journalFile != null
+        && journalSync != TransferJournal.Sync.NONE ? 1 : POLL_INTERVAL;
+    checkpointFile = options.get("checkpoint", null);
+    checkpointMillis = options.getInt("checkpoint-ms", 1000);
+    restart = options.getBoolean("restart", false);
+    if (checkpointMillis < 0)
+      throw new IllegalArgumentException(
+          "Checkpoint interval must not be negative");
+    if (restart && checkpointFile == null)
+      throw new IllegalArgumentException("Restarting requires a checkpoint");
+    if (checkpointFile != null
+        && numberOfAccounts > BalanceCheckpoint.MAX_ACCOUNTS)
+      throw new IllegalArgumentException("Checkpoints hold at most "
+          + BalanceCheckpoint.MAX_ACCOUNTS + " accounts");
+    try {
+      amountCents = journalFile == null && checkpointFile == null
+          ? 0 : Cents.valueOf(transferAmt);
+    } catch (ArithmeticException ae) {
+      throw new IllegalArgumentException(ae.getMessage());
+    }
+    recordLatency = options.getBoolean("latency", false);
+    if (recordLatency) {
+      lockLatency = new LatencyHistogram("lock");
+      updateLatency = new LatencyHistogram("update");
+      transferLatency = new LatencyHistogram("transfer");
+      inquiryLatency = new LatencyHistogram("inquiry");
+    } else {
+      lockLatency = updateLatency = transferLatency = inquiryLatency = null;
+    }
+    if (lockTimeout < 0 || backoffNanos < 0)
+      throw new IllegalArgumentException(
+          "Lock timeout and backoff must not be negative");
+    readers = options.getInt("readers", 0);
+    if (readers < 0 || readers >= threadCount)
+      throw new IllegalArgumentException(
+          "Readers must be fewer than the threads");
+    if (readers > 0 && engineType == EngineType.PARTITIONED)
+      throw new IllegalArgumentException("The partitioned engine balances "
+          + "are only read by their owner, inquiries require another engine");
+    auditMillis = options.getInt("audit-ms", 0);
+    if (auditMillis < 0)
+      throw new IllegalArgumentException(
+          "Audit interval must not be negative");
+    if (auditMillis > 0 && engineType != EngineType.LOCK)
+      throw new IllegalArgumentException("Audits require the lock engine");
+    snapshots = auditMillis > 0 ? new SnapshotEpochs(threadCount) : null;
+    jmx = options.getBoolean("jmx", false);
+    stopCondition = StopCondition.parse(options.get("stop", "empty"));
+    if (stopCondition.getEmptyAccounts() > numberOfAccounts)
+      throw new IllegalArgumentException("Cannot wait for "
+          + stopCondition.getEmptyAccounts() + " empty accounts out of "
+          + numberOfAccounts);
+    emptySeen = stopCondition.getEmptyAccounts() > 0
+        ? new AtomicLongArray((numberOfAccounts + 63) >>> 6) : null;
+    options.checkUnknown();
+    if (balanceMode == BalanceMode.CENTS || checkpointFile != null) {
+      long cents;
+      try {
+        cents = Cents.valueOf(transferAmt);
+      } catch (ArithmeticException ae) {
+        throw new IllegalArgumentException(ae.getMessage());
+      }
+      try {
+        Cents.multiply(Cents.multiply(cents, FACTOR), numberOfAccounts);
+      } catch (ArithmeticException ae) {
+        throw new IllegalArgumentException("Total balance of " + transferAmt
+            + " x " + FACTOR + " x " + numberOfAccounts
+            + " accounts is out of range for cents balances");
+      }
+      transferCents = balanceMode == BalanceMode.CENTS ? cents : 0;
+    } else {
+      transferCents = 0;
+    }
+    SimulatorEvents.RunPhase initPhase = beginPhase("initialize");
+    long initStart = System.nanoTime();
+    if (restart) {
+      try {
+        checkpoint = BalanceCheckpoint.open(Paths.get(checkpointFile),
+            numberOfAccounts, amountCents);
+      } catch (IOException ioe) {
+        throw new IllegalArgumentException("Cannot restart from "
+            + checkpointFile + ": " + ioe.getMessage());
+      }
+      restoredTransactions = checkpoint.getTransactions();
+    } else {
+      restoredTransactions = 0;
+    }
+    if (engineType == EngineType.CAS)
+      engine = new ArrayCasEngine(checkpoint);
+    else if (engineType == EngineType.OFFHEAP)
+      engine = new OffHeapCasEngine(checkpoint);
+    else if (engineType == EngineType.PARTITIONED)
+      engine = new PartitionedEngine(checkpoint);
+    else if (engineType == EngineType.OCC)
+      engine = new OccEngine(checkpoint);
+    else
+      engine = new LockEngine(storeType, checkpoint);
+    initNanos = System.nanoTime() - initStart;
+    commitPhase(initPhase);
   }
 
   /** Creates the specified number of tasks and executes the simulation. When
@@ -71,209 +555,2842 @@ public class AccountSimulator {
    *
    * @throws InterruptedException if a task was interrupted while waiting.
    * @throws ExecutionException if a computation threw an exception.
+   * @throws IOException if the journal could not be written.
    */
-  public void execute() throws InterruptedException, ExecutionException {
+  public void execute()
+      throws InterruptedException, ExecutionException, IOException {
     long startTime = System.currentTimeMillis();
-    ExecutorService transferService = Executors.newFixedThreadPool(threadCount);
-    List<Callable<Void>> transferTasks = new LinkedList<Callable<Void>>();
-    for (int i = 0; i < threadCount; i++)
-      transferTasks.add(new TransferTask());
-    List<Future<Void>> results = transferService.invokeAll(transferTasks);
-    for (Future<Void> result : results) {
-      if (!result.isDone()) {
-        result.get();
-      }
-    }
-    transferService.shutdown();
+    runTasks(stopCondition);
     long totTime = (System.currentTimeMillis() - startTime);
-    System.out.println("Zero balance account ID: " + emptyAccount.getID()
-        + ", initial bal: " + emptyAccount.getStartBalance()
-        + ", credits: " + emptyAccount.getCredits()
-        + ", debits: " + emptyAccount.getDebits()
-        + ", total: " + emptyAccount.getTransactions());
+    BigDecimal[] totals = totalBalances();
+    String reason = stopReason.get();
+    if (emptyIndex != NONE && (EMPTY_ACCOUNT.equals(reason)
+                               || EMPTY_ACCOUNTS.equals(reason))) {
+      System.out.println("Zero balance account ID: " + (ID_BASE + emptyIndex)
+          + ", initial bal: " + engine.getStartBalance(emptyIndex)
+          + ", credits: " + emptyCredits
+          + ", debits: " + emptyDebits
+          + ", total: " + (emptyCredits + emptyDebits)
+          + (emptySeen != null ? ", empty accounts: " + emptyAccounts.get()
+                               : ""));
+    }
     System.out.println("Time: " + (totTime / 1000)
-        + "s, transactions: " + totTransactions.get());
+        + "s, transactions: " + totTransactions.sum() + ", init: "
+        + TimeUnit.NANOSECONDS.toMillis(initNanos) + " ms, stop: "
+        + stopReason.get() + " (" + stopCondition + ")");
+    System.out.println("Throughput: "
+        + totTransactions.sum() / 2 * 1000 / Math.max(1, totTime)
+        + " transfers/s, executor: " + executorType.name().toLowerCase()
+        + (executorType == ExecutorType.VIRTUAL
+           ? ", carrier threads: " + carrierThreads() : ""));
     System.out.println("threads: " + threadCount + ", amt: " + transferAmt
-        + ", accounts: " + numberOfAccounts);
-  }
-
-  private void initAccounts() {
-    Random r = new Random();
-    for (int i = 0; i < numberOfAccounts; i++) {
-      BigDecimal v = new BigDecimal(1 + r.nextInt(FACTOR));
-      Account a = new Account(ID_BASE + i, transferAmt.multiply(v));
-      accounts.put(new Integer(ID_BASE + i), a);
+        + ", accounts: " + numberOfAccounts + ", balance: "
+        + balanceMode.name().toLowerCase() + ", seed: " + seed
+        + ", src: " + srcDistribution + ", dest: " + destDistribution);
+    System.out.println("Total balance: " + totals[0].setScale(Cents.SCALE)
+        + ", start total: " + totals[1].setScale(Cents.SCALE));
+    System.out.println("engine: " + engineType.name().toLowerCase() + ", "
+        + engine.getStatistics());
+    if (readers > 0)
+      System.out.println("readers: " + readers + ", inquiries: "
+          + inquiries.sum() + ", inquiries/s: "
+          + inquiries.sum() * 1000 / Math.max(1, totTime)
+          + ", read retries: " + readRetries.sum());
+    if (recordLatency) {
+      for (LatencyHistogram h : new LatencyHistogram[] {
+          lockLatency, updateLatency, transferLatency, inquiryLatency }) {
+        if (h.getCount() > 0)
+          System.out.println("Latency ns, " + h);
+      }
+    }
+    if (snapshots != null) {
+      long runNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, totTime));
+      long otherNanos = Math.max(1, runNanos - auditNanos);
+      System.out.println("audits: " + audits + ", mismatches: "
+          + auditMismatches + (mismatchTotal != null ? ", first total: "
+          + mismatchTotal.setScale(Cents.SCALE) : "")
+          + ", time auditing: " + TimeUnit.NANOSECONDS.toMillis(auditNanos)
+          + " ms, transfers/s during audits: " + (auditNanos == 0 ? 0
+          : auditTransfers * TimeUnit.SECONDS.toNanos(1) / auditNanos)
+          + ", otherwise: " + (totTransactions.sum() / 2 - auditTransfers)
+          * TimeUnit.SECONDS.toNanos(1) / otherNanos);
+      if (auditLatency.getCount() > 0)
+        System.out.println("Latency ns, " + auditLatency);
+    }
+    if (journal != null) {
+      System.out.println(journal.getStatistics());
+      if (journal.getSyncLatency().getCount() > 0)
+        System.out.println("Latency ns, " + journal.getSyncLatency());
+      if (journal.getCommitLatency().getCount() > 0)
+        System.out.println("Latency ns, " + journal.getCommitLatency());
+    }
+    if (checkpoint != null) {
+      System.out.println("checkpoint: " + checkpointFile + ", sequence: "
+          + checkpoint.getSequence() + (restart ? ", restored "
+          + restoredTransactions + " transactions" : ""));
+      if (checkpointPauses.getCount() > 0)
+        System.out.println("Latency ns, " + checkpointPauses);
     }
   }
 
-  /**
-   * Create a simulator instance using the specified thread count, transfer
-   * amount and number of accounts.
+  /** Runs the transfer tasks for at most the specified time without printing
+   *  statistics, for benchmarking. The run ends early if another stop
+   *  condition is met. A simulator instance can only be run once.
    *
-   * @param tc The number of threads to create.
-   * @param a The transfer amount.
-   * @param accounts The number of accounts to create.
-   * @return A AccountSimulator instance.
+   * @param nanos The maximum run time in nanoseconds.
+   * @return The number of transfers completed.
+   * @throws InterruptedException if a task was interrupted while waiting.
+   * @throws ExecutionException if a computation threw an exception.
+   * @throws IOException if the journal could not be written.
    */
-  public static
-  AccountSimulator getInstance(int tc, BigDecimal a, int accounts) {
-    return new AccountSimulator(tc, a, accounts);
+  long runFor(long nanos)
+      throws InterruptedException, ExecutionException, IOException {
+    runTasks(stopCondition.withTimeLimit(nanos));
+    return totTransactions.sum() / 2;
   }
 
-  public static void main(String... args) {
+  /** Runs the transfer tasks until a stop condition is met or a task fails,
+   *  reporting progress, journaling and checkpointing if enabled. The
+   *  calling thread evaluates the conditions and stops the tasks, then waits
+   *  for all of them to complete. The final balances are checkpointed once
+   *  the tasks have completed. The management bean is registered before
+   *  any task starts, and the tasks are stopped if the run ends abnormally.
+   *
+   * @param condition The conditions ending the run.
+   * @throws InterruptedException if a task was interrupted while waiting.
+   * @throws ExecutionException if a computation or a checkpoint threw an
+   *         exception, the first task failure stops the other tasks.
+   * @throws IOException if the journal or the checkpoints could not be
+   *         written.
+   * @throws IllegalStateException if the management bean cannot be
+   *         registered.
+   */
+  private void runTasks(StopCondition condition)
+      throws InterruptedException, ExecutionException, IOException {
+    ObjectName mbeanName = jmx ? registerMBean() : null;
+    ExecutorService transferService = null;
+    ScheduledExecutorService checkpointWriter = null, auditor = null;
+    ProgressReporter reporter = null;
+    Throwable thrown = null;
     try {
-      if(args.length != 3) {
-        System.out.println("Usage: <thead_count> <trans_amt> <number_accts>");
-        System.exit(1);
+      if (checkpointFile != null && checkpoint == null)
+        checkpoint = BalanceCheckpoint.create(Paths.get(checkpointFile),
+            numberOfAccounts, amountCents);
+      if (checkpoint != null && checkpointMillis > 0)
+        checkpointGate = new Phaser(1 + threadCount);
+      if (journalFile != null)
+        journal = new TransferJournal(Paths.get(journalFile), journalSync,
+            journalSyncMillis, journalSyncRecords, journalBufferSize,
+            threadCount);
+      if (progressMillis > 0) {
+        reporter = new ProgressReporter(progressMillis, progressFormat,
+            System.out, new LongSupplier() {
+              @Override
+              public long getAsLong() {
+                return totTransactions.sum() / 2;
+              }
+            }, new LongSupplier() {
+              @Override
+              public long getAsLong() {
+                return engine.getConflicts();
+              }
+            });
+        reporter.start();
       }
-      int tc = Integer.decode(args[0]);
-      if (tc <= 0 || tc > MAX_THREADS) {
-        System.out.println("Thread count must be between 1 and "
-            + MAX_THREADS);
-        System.exit(tc);
+      if (snapshots != null)
+        auditStartTotal = totalBalances()[1];
+      SimulatorEvents.RunPhase transferPhase = beginPhase("transfers");
+      transferService = newTransferService();
+      List<Future<Void>> results = new ArrayList<Future<Void>>(threadCount);
+      for (int i = 0; i < threadCount; i++) {
+        TransferRandom random = new TransferRandom(seed, i);
+        Callable<Void> task = i < readers
+            ? new InquiryTask(srcDistribution.newSelector(random))
+            : engine.newTask(srcDistribution.newSelector(random),
+                  destDistribution.newSelector(random),
+                  journal == null ? null : journal.newAppender());
+        results.add(transferService.submit(scoped(task)));
       }
-      BigDecimal amt =
-        new BigDecimal(args[1]).setScale(2, RoundingMode.HALF_UP);
-      if (amt.compareTo(ZERO) <= 0) {
-        System.out.println("Transfer amt must be greater 0.");
-        System.exit(1);
+      ScheduledFuture<?> checkpoints = null;
+      if (checkpointGate != null) {
+        checkpointWriter = newDaemonScheduler("checkpoint-writer");
+        checkpoints = checkpointWriter.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            writeCheckpoint();
+          }
+        }, checkpointMillis, checkpointMillis, TimeUnit.MILLISECONDS);
       }
-      int numAccounts = Integer.decode(args[2]);
-      if (numAccounts < 2 || numAccounts > MAX_ACCOUNTS) {
-        System.out.println("Number of accounts must be between 2 and "
-            + MAX_ACCOUNTS);
-        System.exit(numAccounts);
+      ScheduledFuture<?> auditRuns = null;
+      if (snapshots != null) {
+        auditor = newDaemonScheduler("auditor");
+        auditRuns = auditor.scheduleWithFixedDelay(new Runnable() {
+          @Override
+          public void run() {
+            audit();
+          }
+        }, auditMillis, auditMillis, TimeUnit.MILLISECONDS);
       }
-      AccountSimulator simulator = AccountSimulator.getInstance(tc, amt,
-          numAccounts);
-      simulator.execute();
-    } catch (NumberFormatException nfe) {
-      System.out.println(nfe.getMessage());
-      nfe.printStackTrace();
-    } catch (InterruptedException ie) {
-      System.out.println(ie.getMessage());
-      ie.printStackTrace();
-    } catch (ExecutionException e) {
-      System.out.println(e.getMessage());
-      e.printStackTrace();
+      StopCondition.Monitor monitor = condition.newMonitor();
+      while (!stopping) {
+        long now = System.nanoTime();
+        String reason = monitor.check(now, totTransactions.sum() / 2);
+        if (reason != null)
+          stop(reason);
+        else
+          stopSignal.await(monitor.nanosUntilCheck(now),
+              TimeUnit.NANOSECONDS);
+      }
+      ExecutionException failure = null;
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException ee) {
+          if (failure == null)
+            failure = ee;
+        }
+      }
+      commitPhase(transferPhase);
+      if (checkpointWriter != null) {
+        checkpointWriter.shutdown();
+        checkpointWriter.awaitTermination(Long.MAX_VALUE,
+            TimeUnit.NANOSECONDS);
+        if (checkpoints.isDone() && !checkpoints.isCancelled())
+          checkpoints.get();
+      }
+      if (auditor != null) {
+        auditor.shutdown();
+        auditor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        if (auditRuns.isDone() && !auditRuns.isCancelled())
+          auditRuns.get();
+      }
+      if (failure != null)
+        throw failure;
+      if (checkpoint != null) {
+        engine.save(checkpoint);
+        checkpoint.commit(restoredTransactions + totTransactions.sum());
+      }
+    } catch (Throwable t) {
+      thrown = t;
+      throw t;
+    } finally {
+      /* Only takes effect when the run ended abnormally, so the tasks
+         return and the pool threads do not keep the JVM alive */
+      stop("failed");
+      if (transferService != null)
+        transferService.shutdown();
+      if (checkpointWriter != null)
+        checkpointWriter.shutdown();
+      if (auditor != null)
+        auditor.shutdown();
+      closeRun(reporter, mbeanName, thrown);
     }
   }
 
-  /**
-   * The task that each thread executes to transfer amounts.
+  /** Closes the checkpoint, the journal, the progress reporter and the
+   *  management bean of a run, whichever were opened. Every one is closed
+   *  even if another fails. The failures are added as suppressed to the one
+   *  the run threw, so they do not hide it, or else the first is thrown.
    *
+   * @param reporter The progress reporter, or null.
+   * @param mbeanName The name of the management bean, or null.
+   * @param thrown What the run threw, or null if it completed.
+   * @throws IOException if the checkpoint or the journal failed to close.
+   * @throws InterruptedException if interrupted waiting for the journal or
+   *         the reporter.
    */
-  private final class TransferTask implements Callable<Void> {
-    private final Random r = new Random();
-
-    @Override
-    public Void call() throws Exception {
-      while (emptyAccount == null) {
-        Account src = getAccount();
-        Account dest = getAccount();
-        if (src == dest)
-          continue;
-        if (src.lock()) {
-          try {
-            if (dest.lock()) {
-              try {
-                if (src.isEmptyBalance() && emptyAccount == null) {
-                  emptyAccount = src;
-                } else if (emptyAccount == null) {
-                  src.debit(transferAmt);
-                  dest.credit(transferAmt);
-                }
-              } finally {
-                dest.unlock();
-              }
-            }
-          } finally {
-            src.unlock();
-          }
-        }
+  private void closeRun(ProgressReporter reporter, ObjectName mbeanName,
+      Throwable thrown) throws IOException, InterruptedException {
+    Exception failure = null;
+    if (checkpoint != null) {
+      try {
+        checkpoint.close();
+      } catch (IOException ioe) {
+        failure = addFailure(failure, ioe);
       }
-      return null;
     }
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException ioe) {
+        failure = addFailure(failure, ioe);
+      } catch (InterruptedException ie) {
+        failure = addFailure(failure, ie);
+      }
+    }
+    if (reporter != null) {
+      try {
+        reporter.stop();
+      } catch (InterruptedException ie) {
+        failure = addFailure(failure, ie);
+      }
+    }
+    if (mbeanName != null) {
+      try {
+        unregisterMBean(mbeanName);
+      } catch (IllegalStateException ise) {
+        failure = addFailure(failure, ise);
+      }
+    }
+    if (failure == null)
+      return;
+    if (thrown != null)
+      thrown.addSuppressed(failure);
+    else if (failure instanceof IOException)
+      throw (IOException) failure;
+    else if (failure instanceof InterruptedException)
+      throw (InterruptedException) failure;
+    else
+      throw (RuntimeException) failure;
+  }
+
+  /** Keeps the first failure closing a run, the later ones are added to it
+   *  as suppressed.
+   *
+   * @param first The first failure, or null.
+   * @param next The failure just caught.
+   * @return The first failure.
+   */
+  private static Exception addFailure(Exception first, Exception next) {
+    if (first == null)
+      return next;
+    first.addSuppressed(next);
+    return first;
+  }
+
+  /** Stops the run, the tasks complete their transfer in flight and
+   *  return. Only the first reason is kept.
+   *
+   * @param reason The condition met or failure stopping the run.
+   */
+  private void stop(String reason) {
+    stopReason.compareAndSet(null, reason);
+    stopping = true;
+    stopSignal.countDown();
+  }
+
+  /** Registers the management bean of the run with the platform MBean
+   *  server.
+   *
+   * @return The name of the bean.
+   * @throws IllegalStateException if the bean cannot be registered, for
+   *         instance while another simulator of this JVM is running.
+   */
+  private ObjectName registerMBean() {
+    try {
+      ObjectName name = new ObjectName(MBEAN_NAME);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new SimulatorBean(), name);
+      return name;
+    } catch (JMException e) {
+      throw new IllegalStateException("Cannot register " + MBEAN_NAME, e);
+    }
+  }
 
-    private Account getAccount() {
-      return accounts.get(new Integer(ID_BASE + r.nextInt(numberOfAccounts)));
+  /** Unregisters the management bean once the tasks have completed.
+   *
+   * @param name The name returned by registerMBean().
+   */
+  private void unregisterMBean(ObjectName name) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.unregisterMBean(name);
+    } catch (JMException e) {
+      throw new IllegalStateException("Cannot unregister " + name, e);
     }
   }
 
   /**
-   * Represents an account to credit or debit the transfer amount to/from.
+   * Management bean of a run, see SimulatorMXBean. Reads the counters the
+   * tasks update and sets the flags they poll, it is never waited for by
+   * the tasks.
    *
    */
-  private final class Account {
-    private final int accountID;
-    private BigDecimal balance;
-    private final BigDecimal startBalance;
-    private final AtomicLong debits = new AtomicLong(0);
-    private final AtomicLong credits = new AtomicLong(0);
-    private final ReentrantLock lock = new ReentrantLock();
+  private final class SimulatorBean implements SimulatorMXBean {
+    private final long startNanos = System.nanoTime();
 
-    Account(int accountID, BigDecimal initial) {
-      this.accountID = accountID;
-      balance = initial;
-      startBalance = initial;
+    /* Time and transfers of the previous throughput read */
+    private long sampleNanos = startNanos, sampleTransfers;
+
+    @Override
+    public String getEngine() {
+      return engineType.name().toLowerCase();
     }
 
-    void unlock() {
-      lock.unlock();
+    @Override
+    public String getConfiguration() {
+      return "threads: " + threadCount + ", amt: " + transferAmt
+          + ", accounts: " + numberOfAccounts + ", balance: "
+          + balanceMode.name().toLowerCase() + ", layout: "
+          + layout.name().toLowerCase() + ", locking: "
+          + lockStrategy.name().toLowerCase() + ", backoff: "
+          + backoff.name().toLowerCase() + ", executor: "
+          + executorType.name().toLowerCase() + ", readers: " + readers
+          + ", seed: " + seed + ", src: " + srcDistribution + ", dest: "
+          + destDistribution + ", stop: " + stopCondition;
     }
 
-    boolean isEmptyBalance() {
-      return balance.compareTo(ZERO) == 0 ? true : false;
+    @Override
+    public int getThreads() {
+      return threadCount;
     }
 
-    boolean lock() {
-      return lock.tryLock();
+    @Override
+    public int getActiveTasks() {
+      return activeTasks.get();
     }
 
-    int getID() {
-      return accountID;
+    @Override
+    public long getTransfers() {
+      return totTransactions.sum() / 2;
     }
 
-    void debit(BigDecimal amt) {
-      balance = balance.subtract(amt);
-      totTransactions.getAndIncrement();
-      debits.getAndIncrement();
+    @Override
+    public synchronized long getThroughput() {
+      long now = System.nanoTime(), transfers = getTransfers();
+      long rate = (transfers - sampleTransfers) * TimeUnit.SECONDS.toNanos(1)
+          / Math.max(1, now - sampleNanos);
+      sampleNanos = now;
+      sampleTransfers = transfers;
+      return rate;
     }
 
-    void credit(BigDecimal amt) {
-      balance = balance.add(amt);
-      totTransactions.getAndIncrement();
-      credits.getAndIncrement();
+    @Override
+    public long getAverageThroughput() {
+      return getTransfers() * TimeUnit.SECONDS.toNanos(1)
+          / Math.max(1, System.nanoTime() - startNanos);
     }
 
-    long getTransactions() {
-      return credits.get() + debits.get();
+    @Override
+    public long getConflicts() {
+      return engine.getConflicts();
     }
 
-    long getDebits() {
-      return debits.get();
+    @Override
+    public String getEngineStatistics() {
+      return engine.getStatistics();
     }
 
-    long getCredits() {
-      return credits.get();
+    @Override
+    public String[] getHottestAccounts() {
+      String[] accounts = new String[HOTTEST_ACCOUNTS];
+      long[] counts = new long[HOTTEST_ACCOUNTS];
+      int size = 0;
+      for (int i = 0; i < numberOfAccounts; i++) {
+        long debits = engine.getDebits(i), credits = engine.getCredits(i);
+        long count = debits + credits;
+        if (size == HOTTEST_ACCOUNTS && count <= counts[size - 1])
+          continue;
+        int j = size < HOTTEST_ACCOUNTS ? size++ : size - 1;
+        for (; j > 0 && counts[j - 1] < count; j--) {
+          accounts[j] = accounts[j - 1];
+          counts[j] = counts[j - 1];
+        }
+        accounts[j] = "ID: " + (ID_BASE + i) + ", debits: " + debits
+            + ", credits: " + credits;
+        counts[j] = count;
+      }
+      return Arrays.copyOf(accounts, size);
     }
 
-    BigDecimal getStartBalance() {
-      return startBalance;
+    @Override
+    public boolean isPaused() {
+      return suspended && !stopping;
     }
 
     @Override
-    public int hashCode() {
-      return accountID;
+    public String getStopReason() {
+      return stopReason.get();
     }
 
     @Override
-    public boolean equals(Object o) {
-      if (o == this)
+    public void pause() {
+      suspended = true;
+    }
+
+    @Override
+    public void resume() {
+      suspended = false;
+    }
+
+    @Override
+    public void stop() {
+      AccountSimulator.this.stop("jmx");
+    }
+  }
+
+  /** Records an account found empty by a transfer and stops the run once
+   *  the empty condition is met. Transfers from an empty account are
+   *  skipped. Called with the account lock held by the engines that lock
+   *  accounts, so the counts of the first empty account are those of its
+   *  zero balance, the other engines read them as soon as it is found.
+   *
+   * @param index The account index.
+   */
+  private void accountEmpty(int index) {
+    boolean first = emptyIndex == NONE && firstEmpty(index);
+    if (emptySeen == null) {
+      if (first)
+        emptyAccountEvent(index, 0);
+      return;
+    }
+    int word = index >>> 6;
+    long bit = 1L << index, seen;
+    do {
+      seen = emptySeen.get(word);
+      if ((seen & bit) != 0)
+        return;
+    } while (!emptySeen.compareAndSet(word, seen, seen | bit));
+    int count = emptyAccounts.incrementAndGet();
+    emptyAccountEvent(index, count);
+    if (count == stopCondition.getEmptyAccounts())
+      stop(stopCondition.getEmptyAccounts() == 1 ? EMPTY_ACCOUNT
+                                                 : EMPTY_ACCOUNTS);
+  }
+
+  /** Records the counts of the first empty account found, unless another
+   *  task found one first.
+   *
+   * @param index The account index.
+   * @return <tt>true</tt> if this account is the first one found.
+   */
+  private synchronized boolean firstEmpty(int index) {
+    if (emptyIndex != NONE)
+      return false;
+    emptyCredits = engine.getCredits(index);
+    emptyDebits = engine.getDebits(index);
+    emptyIndex = index;
+    return true;
+  }
+
+  /** Records an account found empty for the first time with the flight
+   *  recorder, if enabled.
+   *
+   * @param index The account index.
+   * @param count The distinct empty accounts found so far, zero if they
+   *        are not counted.
+   */
+  private void emptyAccountEvent(int index, int count) {
+    SimulatorEvents.EmptyAccount event = new SimulatorEvents.EmptyAccount();
+    if (event.shouldCommit()) {
+      event.account = ID_BASE + index;
+      event.emptyAccounts = count;
+      event.engine = engineType.name().toLowerCase();
+      event.commit();
+    }
+  }
+
+  /** Scopes a task to the run: if it fails the whole run is stopped, and
+   *  once it completes it leaves the checkpoint gate, after which
+   *  checkpoints no longer wait for it.
+   *
+   * @param task The transfer task.
+   * @return The wrapped task.
+   */
+  private Callable<Void> scoped(final Callable<Void> task) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        boolean completed = false;
+        activeTasks.incrementAndGet();
+        try {
+          task.call();
+          completed = true;
+          return null;
+        } finally {
+          activeTasks.decrementAndGet();
+          if (!completed)
+            stop("failed");
+          if (checkpointGate != null)
+            checkpointGate.arriveAndDeregister();
+        }
+      }
+    };
+  }
+
+  /**
+   * Base of the transfer tasks, polls the stop and pause flags every
+   * pollInterval transfers rather than reading them on every transfer.
+   *
+   */
+  private abstract class PollingTask implements Callable<Void> {
+
+    /* Transfers left until the flags are polled */
+    private int untilPoll;
+
+    /* Whether a recording enables the transfer and lock contention events,
+       polled with the flags so no event is created while they are off */
+    private boolean transferEvents;
+    boolean contentionEvents;
+
+    /* Index of the task in the snapshot epochs, unused when not auditing */
+    final int slot = snapshots == null ? 0 : snapshots.register();
+
+    /** Returns whether the task should perform another transfer, pausing
+     *  first if a checkpoint is pending or the run is paused over JMX. On
+     *  virtual threads the task also yields its carrier at each poll. Only
+     *  called between transfers.
+     *
+     * @return <tt>false</tt> once the run is stopped.
+     */
+    boolean running() {
+      if (--untilPoll > 0)
         return true;
-      if (!(o instanceof Account))
-        return false;
-      return accountID == ((Account) o).getID();
+      untilPoll = pollInterval;
+      transferEvents = SimulatorEvents.isTransferEnabled();
+      contentionEvents = SimulatorEvents.isContentionEnabled();
+      if (yieldTransfers)
+        Thread.yield();
+      if (pausing)
+        pause();
+      while (suspended && !stopping) {
+        idle();
+        if (pausing)
+          pause();
+      }
+      return !stopping;
+    }
+
+    /** Waits for a checkpoint to be written. */
+    void pause() {
+      awaitCheckpoint();
+    }
+
+    /** Starts timing a transfer for the flight recorder.
+     *
+     * @return The started event, or null while the event is not enabled.
+     */
+    SimulatorEvents.Transfer beginTransfer() {
+      if (!transferEvents)
+        return null;
+      SimulatorEvents.Transfer event = new SimulatorEvents.Transfer();
+      event.begin();
+      return event;
+    }
+
+    /** Waits a little while the run is paused over JMX. */
+    void idle() {
+      LockSupport.parkNanos(PAUSED_POLL_NANOS);
+    }
+  }
+
+  /** Pauses the tasks, checkpoints the balances and resumes the tasks. The
+   *  writer and the tasks pass three phases of the checkpoint gate: every
+   *  task has stopped transferring, every transfer in flight is applied and
+   *  the checkpoint is written.
+   */
+  private void writeCheckpoint() {
+    SimulatorEvents.RunPhase phase = beginPhase("checkpoint");
+    long started = System.nanoTime();
+    pausing = true;
+    checkpointGate.arriveAndAwaitAdvance();
+    checkpointGate.arriveAndAwaitAdvance();
+    try {
+      engine.save(checkpoint);
+      checkpoint.commit(restoredTransactions + totTransactions.sum());
+    } finally {
+      pausing = false;
+      checkpointGate.arriveAndAwaitAdvance();
+    }
+    checkpointPauses.record(System.nanoTime() - started);
+    commitPhase(phase);
+  }
+
+  /** Waits for a checkpoint to be written, see writeCheckpoint(). Only
+   *  called by a task between transfers, when it has none in flight.
+   */
+  private void awaitCheckpoint() {
+    checkpointGate.arriveAndAwaitAdvance();
+    checkpointGate.arriveAndAwaitAdvance();
+    checkpointGate.arriveAndAwaitAdvance();
+  }
+
+  /** Audits a consistent snapshot of the balances taken while the tasks
+   *  run, see SnapshotEpochs. The snapshot total must equal the sum of the
+   *  start balances.
+   */
+  private void audit() {
+    SimulatorEvents.RunPhase phase = beginPhase("audit");
+    long started = System.nanoTime();
+    long transfers = totTransactions.sum();
+    BigDecimal total = engine.snapshotTotal(snapshots.advance());
+    if (total.compareTo(auditStartTotal) != 0 && auditMismatches++ == 0)
+      mismatchTotal = total;
+    audits++;
+    long elapsed = System.nanoTime() - started;
+    auditNanos += elapsed;
+    auditTransfers += (totTransactions.sum() - transfers) / 2;
+    auditLatency.record(elapsed);
+    commitPhase(phase);
+  }
+
+  /** Starts timing a run phase for the flight recorder.
+   *
+   * @param name The name of the phase.
+   * @return The started event.
+   */
+  private static SimulatorEvents.RunPhase beginPhase(String name) {
+    SimulatorEvents.RunPhase phase = new SimulatorEvents.RunPhase();
+    phase.begin();
+    phase.phase = name;
+    return phase;
+  }
+
+  /** Ends a run phase and records it if the flight recorder is enabled.
+   *
+   * @param phase The event started by beginPhase().
+   */
+  private void commitPhase(SimulatorEvents.RunPhase phase) {
+    phase.end();
+    if (phase.shouldCommit()) {
+      phase.engine = engineType.name().toLowerCase();
+      phase.threads = threadCount;
+      phase.accounts = numberOfAccounts;
+      phase.commit();
+    }
+  }
+
+  /** Ends a transfer event and records it if the flight recorder is enabled
+   *  and the transfer took longer than the event threshold.
+   *
+   * @param event The event begun before the accounts were drawn, or null.
+   * @param src The source account index.
+   * @param dest The destination account index, the first one of a
+   *        multi-leg transfer.
+   * @param attempts The lock acquisitions or commits tried.
+   */
+  private void commitTransfer(SimulatorEvents.Transfer event, int src,
+                              int dest, int attempts) {
+    if (event == null)
+      return;
+    event.end();
+    if (event.shouldCommit()) {
+      event.source = ID_BASE + src;
+      event.destination = ID_BASE + dest;
+      event.legs = legs;
+      event.attempts = attempts;
+      event.engine = engineType.name().toLowerCase();
+      event.commit();
+    }
+  }
+
+  /** Creates a single thread scheduler whose thread does not keep the JVM
+   *  alive.
+   *
+   * @param name The name of the thread.
+   * @return A new scheduler.
+   */
+  private static ScheduledExecutorService newDaemonScheduler(
+      final String name) {
+    return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /** Creates the executor that runs the transfer tasks.
+   *
+   * @return A new executor of the configured type.
+   */
+  private ExecutorService newTransferService() {
+    if (executorType == ExecutorType.PLATFORM)
+      return Executors.newFixedThreadPool(threadCount);
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Cannot create virtual threads", e);
+    }
+  }
+
+  /** Counts the platform threads carrying virtual threads. Idle carriers are
+   *  kept alive for a while, so this is the number used by the run.
+   *
+   * @return The number of live carrier threads.
+   */
+  private static int carrierThreads() {
+    int n = 0;
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getClass().getName().equals("jdk.internal.misc.CarrierThread"))
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * The kinds of threads the transfer tasks can run on.
+   *
+   */
+  enum ExecutorType {
+    /* Fixed pool with a platform thread per task */
+    PLATFORM,
+    /* A virtual thread per task */
+    VIRTUAL
+  }
+
+  /**
+   * The engines that can apply the transfers.
+   *
+   */
+  enum EngineType {
+    /* Account objects updated under a pair of account locks */
+    LOCK(200, MAX_ACCOUNTS),
+    /* Lock-free compare-and-set on an array of cents balances */
+    CAS(4 * Long.BYTES, Integer.MAX_VALUE / ArrayCasEngine.SLOTS),
+    /* Accounts partitioned across single-writer tasks exchanging credits */
+    PARTITIONED(4 * Long.BYTES, MAX_ACCOUNTS),
+    /* Lock-free compare-and-set on an off-heap table of cents balances */
+    OFFHEAP(OffHeapAccounts.ACCOUNT_SIZE, MAX_ACCOUNTS),
+    /* Optimistic transfers validated against account version words */
+    OCC(5 * Long.BYTES, Integer.MAX_VALUE / OccEngine.SLOTS);
+
+    /* Approximate memory an account takes in bytes */
+    private final int accountBytes;
+
+    /* Number of accounts the engine can address */
+    private final int maxAccounts;
+
+    EngineType(int accountBytes, int maxAccounts) {
+      this.accountBytes = accountBytes;
+      this.maxAccounts = maxAccounts;
+    }
+  }
+
+  /**
+   * The memory layouts of the accounts.
+   *
+   */
+  enum Layout {
+    /* Accounts back to back, neighbours share cache lines */
+    PACKED,
+    /* Every account, or the accounts of a partition, on its own cache lines
+       so tasks updating neighbours do not invalidate each other's lines.
+       Account objects of the lock engine are followed by padding instead */
+    PADDED
+  }
+
+  /** Returns the largest number of accounts an engine can hold in the memory
+   *  available. Heap engines get half the maximum heap, the off-heap engine
+   *  the direct memory limit.
+   *
+   * @param type The engine.
+   * @param layout The account layout.
+   * @return The maximum number of accounts.
+   */
+  static int maxAccounts(EngineType type, Layout layout) {
+    long memory = type == EngineType.OFFHEAP
+        ? maxDirectMemory() : Runtime.getRuntime().maxMemory() / 2;
+    if (layout == Layout.PADDED && type != EngineType.LOCK)
+      return (int) Math.min(Integer.MAX_VALUE / PADDED_LONGS,
+          memory / (PADDED_LONGS * Long.BYTES));
+    long accountBytes = type.accountBytes;
+    if (layout == Layout.PADDED)
+      accountBytes += PADDED_LONGS * Long.BYTES;
+    return (int) Math.min(type.maxAccounts, memory / accountBytes);
+  }
+
+  /** Returns the limit of the memory direct buffers may allocate, set by
+   *  -XX:MaxDirectMemorySize and otherwise the maximum heap size.
+   *
+   * @return The direct memory limit in bytes.
+   */
+  private static long maxDirectMemory() {
+    try {
+      HotSpotDiagnosticMXBean vm =
+          ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      long max = Long.parseLong(
+          vm.getVMOption("MaxDirectMemorySize").getValue());
+      if (max > 0)
+        return max;
+    } catch (RuntimeException e) {
+      /* Not a HotSpot VM, assume the default limit */
+    }
+    return Runtime.getRuntime().maxMemory();
+  }
+
+  /**
+   * The ways a transfer can acquire the locks of its two accounts.
+   *
+   */
+  enum LockStrategy {
+    /* Try the source then the destination lock, give up if either is held */
+    TRYLOCK,
+    /* Block on both locks in account ID order, never fails */
+    ORDERED,
+    /* Wait a bounded time for each lock in account ID order */
+    TIMED
+  }
+
+  /**
+   * The representations an account balance can be held in.
+   *
+   */
+  enum BalanceMode {
+    /* Immutable BigDecimal, allocates on every debit and credit */
+    DECIMAL,
+    /* Scaled long cents with overflow detection */
+    CENTS
+  }
+
+  /** Returns the start balance of an account as a multiple of the transfer
+   *  amount. It only depends on the seed and the account index, so the
+   *  balances are the same whatever order and threads initialize them in.
+   *
+   * @param index The account index.
+   * @return A multiple in <tt>[1, FACTOR]</tt>.
+   */
+  private int startUnits(int index) {
+    return 1 + TransferRandom.valueAt(seed, index, FACTOR);
+  }
+
+  /** Initializes every account in parallel on the common fork/join pool.
+   *  Returns once all accounts are initialized and visible to the caller.
+   *
+   * @param init Initializes the account of an index.
+   */
+  private void forEachAccount(IntConsumer init) {
+    IntStream.range(0, numberOfAccounts).parallel().forEach(init);
+  }
+
+  /** Sums the current and start balances of all accounts. Only consistent
+   *  when no transfers are running.
+   *
+   * @return The current total followed by the start total.
+   */
+  private BigDecimal[] totalBalances() {
+    BigDecimal total = ZERO, start = ZERO;
+    for (int i = 0; i < numberOfAccounts; i++) {
+      total = total.add(engine.getBalance(i));
+      start = start.add(engine.getStartBalance(i));
+    }
+    return new BigDecimal[] { total, start };
+  }
+
+  /**
+   * Create a simulator instance using the specified thread count, transfer
+   * amount and number of accounts.
+   *
+   * @param tc The number of threads to create.
+   * @param a The transfer amount.
+   * @param accounts The number of accounts to create.
+   * @return A AccountSimulator instance.
+   */
+  public static
+  AccountSimulator getInstance(int tc, BigDecimal a, int accounts) {
+    return new AccountSimulator(tc, a, accounts, new SimulatorOptions());
+  }
+
+  /**
+   * Create a simulator instance using the specified thread count, transfer
+   * amount, number of accounts and optional settings.
+   *
+   * @param tc The number of threads to create.
+   * @param a The transfer amount.
+   * @param accounts The number of accounts to create.
+   * @param options The optional simulator settings.
+   * @return A AccountSimulator instance.
+   * @throws IllegalArgumentException if an option is unknown or invalid.
+   */
+  public static AccountSimulator getInstance(int tc, BigDecimal a,
+      int accounts, SimulatorOptions options) {
+    return new AccountSimulator(tc, a, accounts, options);
+  }
+
+  public static void main(String... args) {
+    try {
+      if(args.length < 3) {
+        System.out.println(USAGE);
+        System.exit(1);
+      }
+      SimulatorOptions options = SimulatorOptions.parse(args, 3);
+      int tc = Integer.decode(args[0]);
+      int maxThreads = options.getEnum("executor", ExecutorType.class,
+          ExecutorType.PLATFORM) == ExecutorType.VIRTUAL ? MAX_VIRTUAL_TASKS
+                                                         : MAX_THREADS;
+      if (tc <= 0 || tc > maxThreads) {
+        System.out.println("Thread count must be between 1 and "
+            + maxThreads);
+        System.exit(tc);
+      }
+      BigDecimal amt =
+        new BigDecimal(args[1]).setScale(2, RoundingMode.HALF_UP);
+      if (amt.compareTo(ZERO) <= 0) {
+        System.out.println("Transfer amt must be greater 0.");
+        System.exit(1);
+      }
+      int numAccounts = Integer.decode(args[2]);
+      int maxAccounts = maxAccounts(
+          options.getEnum("engine", EngineType.class, EngineType.LOCK),
+          options.getEnum("layout", Layout.class, Layout.PACKED));
+      if (numAccounts < 2 || numAccounts > maxAccounts) {
+        System.out.println("Number of accounts must be between 2 and "
+            + maxAccounts);
+        System.exit(numAccounts);
+      }
+      AccountSimulator simulator = AccountSimulator.getInstance(tc, amt,
+          numAccounts, options);
+      simulator.execute();
+    } catch (NumberFormatException nfe) {
+      System.out.println(nfe.getMessage());
+      nfe.printStackTrace();
+    } catch (IllegalArgumentException iae) {
+      System.out.println(iae.getMessage());
+      System.out.println(USAGE);
+      System.exit(1);
+    } catch (InterruptedException ie) {
+      System.out.println(ie.getMessage());
+      ie.printStackTrace();
+    } catch (ExecutionException e) {
+      System.out.println(e.getMessage());
+      e.printStackTrace();
+    } catch (IOException ioe) {
+      System.out.println(ioe.getMessage());
+      ioe.printStackTrace();
+    }
+  }
+
+  /**
+   * Applies transfers to the account balances held in an engine specific
+   * layout. The account accessors are only consistent once every task has
+   * completed.
+   *
+   */
+  private interface TransferEngine {
+
+    /** Creates a task that transfers amounts until the run is stopped.
+     *
+     * @param src Selects the source accounts of the task.
+     * @param dest Selects the destination accounts of the task.
+     * @param journal Journals the transfers of the task, or null.
+     * @return A new transfer task.
+     */
+    Callable<Void> newTask(AccountDistribution.Selector src,
+                           AccountDistribution.Selector dest,
+                           TransferJournal.Appender journal);
+
+    BigDecimal getBalance(int index);
+
+    /** Reads the balance of an account while the tasks run, without
+     *  blocking the transfers.
+     *
+     * @param index The account index.
+     * @return The balance.
+     * @throws UnsupportedOperationException if the engine does not support
+     *         concurrent reads.
+     */
+    BigDecimal readBalance(int index);
+
+    BigDecimal getStartBalance(int index);
+
+    long getDebits(int index);
+
+    long getCredits(int index);
+
+    /** Returns the number of transfer attempts that failed and were retried,
+     *  lock failures or lost compare-and-set races depending on the engine.
+     *
+     * @return The number of failed attempts so far.
+     */
+    long getConflicts();
+
+    /** Returns the engine specific run statistics.
+     *
+     * @return The statistics formatted for the run report.
+     */
+    String getStatistics();
+
+    /** Writes the balances and counters of every account to the next
+     *  checkpoint. Only consistent while no task is transferring.
+     *
+     * @param checkpoint The checkpoint to write to.
+     */
+    void save(BalanceCheckpoint checkpoint);
+
+    /** Sums the balances of a snapshot while the tasks run.
+     *
+     * @param epoch The epoch of the snapshot, just started.
+     * @return The total of the snapshot.
+     * @throws UnsupportedOperationException if the engine does not support
+     *         snapshots.
+     */
+    BigDecimal snapshotTotal(long epoch);
+  }
+
+  /**
+   * Engine holding Account objects in a store. Each transfer locks its two
+   * accounts.
+   *
+   */
+  private final class LockEngine implements TransferEngine {
+
+    /* Store of the accounts addressed by account index */
+    private final AccountStore<Account> accounts;
+
+    LockEngine(AccountStore.Type storeType,
+               final BalanceCheckpoint restored) {
+      accounts = storeType.create(numberOfAccounts, ID_BASE);
+      final Account[] created = new Account[numberOfAccounts];
+      forEachAccount(new IntConsumer() {
+        @Override
+        public void accept(int i) {
+          if (restored != null) {
+            created[i] = restore(restored, i);
+          } else if (balanceMode == BalanceMode.CENTS) {
+            long balance = Cents.multiply(transferCents, startUnits(i));
+            created[i] = newAccount(i, balance, balance);
+          } else {
+            BigDecimal balance =
+                transferAmt.multiply(new BigDecimal(startUnits(i)));
+            created[i] = newAccount(i, balance, balance);
+          }
+        }
+      });
+      for (int i = 0; i < numberOfAccounts; i++)
+        accounts.put(i, created[i]);
+    }
+
+    private Account restore(BalanceCheckpoint restored, int index) {
+      long balance = restored.getBalance(index);
+      long start = restored.getStartBalance(index);
+      Account a;
+      if (balanceMode == BalanceMode.CENTS)
+        a = newAccount(index, balance, start);
+      else
+        a = newAccount(index, Cents.toDecimal(balance), Cents.toDecimal(start));
+      a.restoreCounts(restored.getDebits(index), restored.getCredits(index));
+      return a;
+    }
+
+    /** Creates a cents account in the configured layout. Its lock is
+     *  allocated first, so with the padded layout the padding at the end of
+     *  the account keeps both off the cache lines of the next account
+     *  allocated.
+     *
+     * @param index The account index.
+     * @param balance The balance in cents.
+     * @param start The start balance in cents.
+     * @return The new account.
+     */
+    private Account newAccount(int index, long balance, long start) {
+      ReentrantLock lock = new ReentrantLock();
+      if (layout == Layout.PADDED)
+        return new PaddedCentsAccount(ID_BASE + index, lock, balance, start);
+      return new CentsAccount(ID_BASE + index, lock, balance, start);
+    }
+
+    /** Creates a decimal account in the configured layout, see
+     *  newAccount(int, long, long).
+     *
+     * @param index The account index.
+     * @param balance The balance.
+     * @param start The start balance.
+     * @return The new account.
+     */
+    private Account newAccount(int index, BigDecimal balance,
+                               BigDecimal start) {
+      ReentrantLock lock = new ReentrantLock();
+      if (layout == Layout.PADDED)
+        return new PaddedDecimalAccount(ID_BASE + index, lock, balance, start);
+      return new DecimalAccount(ID_BASE + index, lock, balance, start);
+    }
+
+    @Override
+    public Callable<Void> newTask(AccountDistribution.Selector src,
+                                  AccountDistribution.Selector dest,
+                                  TransferJournal.Appender journal) {
+      if (batchSize > 1)
+        return new BatchTransferTask(accounts, src, dest, journal);
+      if (legs > 1)
+        return new MultiLegTransferTask(accounts, src, dest, journal);
+      return new TransferTask(accounts, src, dest, journal);
+    }
+
+    @Override
+    public BigDecimal getBalance(int index) {
+      return accounts.get(index).getBalance();
+    }
+
+    @Override
+    public BigDecimal readBalance(int index) {
+      return accounts.get(index).readBalance();
+    }
+
+    @Override
+    public BigDecimal getStartBalance(int index) {
+      return accounts.get(index).getStartBalance();
+    }
+
+    @Override
+    public long getDebits(int index) {
+      return accounts.get(index).getDebits();
+    }
+
+    @Override
+    public long getCredits(int index) {
+      return accounts.get(index).getCredits();
+    }
+
+    @Override
+    public long getConflicts() {
+      return lockFailures.sum();
+    }
+
+    @Override
+    public String getStatistics() {
+      if (batchSize > 1)
+        return "batch: " + batchSize + ", lock failures: "
+            + lockFailures.sum();
+      if (legs > 1)
+        return "legs: " + legs + ", multi-leg transfers: "
+            + multiLegTransfers.sum() + ", insufficient funds: "
+            + insufficientFunds.sum() + ", lock failures: "
+            + lockFailures.sum();
+      return "locking: " + lockStrategy.name().toLowerCase()
+          + ", backoff: " + backoff.name().toLowerCase()
+          + ", lock failures: " + lockFailures.sum();
+    }
+
+    @Override
+    public void save(BalanceCheckpoint checkpoint) {
+      for (int i = 0; i < numberOfAccounts; i++) {
+        Account a = accounts.get(i);
+        checkpoint.put(i, Cents.valueOf(a.getBalance()),
+            Cents.valueOf(a.getStartBalance()), a.getDebits(),
+            a.getCredits());
+      }
+    }
+
+    @Override
+    public BigDecimal snapshotTotal(long epoch) {
+      BigDecimal total = ZERO;
+      for (int i = 0; i < numberOfAccounts; i++) {
+        Account a = accounts.get(i);
+        a.lockBlocking();
+        try {
+          a.capture(epoch);
+          total = total.add(a.getCapturedBalance());
+        } finally {
+          a.unlock();
+        }
+      }
+      return total;
+    }
+  }
+
+  /**
+   * Engine holding the balances as cents, without locks. Debits are retried
+   * with compare-and-set so a balance is never taken below zero, credits are
+   * added unconditionally. Money in flight between a debit and its credit is
+   * only visible to a concurrent sum, once the tasks complete the total is
+   * conserved. Subclasses hold the account fields in a specific layout.
+   *
+   */
+  private abstract class CasEngine implements TransferEngine {
+
+    /** Sets the accounts from a checkpoint, or to new start balances drawn
+     *  from the seed. Called by the subclass constructor once its layout is
+     *  allocated.
+     *
+     * @param restored The checkpoint to restore, or null.
+     */
+    void initialize(final BalanceCheckpoint restored) {
+      forEachAccount(new IntConsumer() {
+        @Override
+        public void accept(int i) {
+          if (restored != null) {
+            set(i, restored.getBalance(i), restored.getStartBalance(i),
+                restored.getDebits(i), restored.getCredits(i));
+          } else {
+            long start = Cents.multiply(transferCents, startUnits(i));
+            set(i, start, start, 0, 0);
+          }
+        }
+      });
+    }
+
+    /** Sets the fields of an account before the tasks start.
+     *
+     * @param index The account index.
+     * @param balance The balance in cents.
+     * @param start The start balance in cents.
+     * @param debits The number of debits.
+     * @param credits The number of credits.
+     */
+    abstract void set(int index, long balance, long start, long debits,
+                      long credits);
+
+    abstract long balance(int index);
+
+    /** Atomically replaces the balance if it holds the expected value.
+     *
+     * @param index The account index.
+     * @param expected The expected balance.
+     * @param balance The new balance.
+     * @return The balance held, the expected one if it was replaced.
+     */
+    abstract long compareAndExchangeBalance(int index, long expected,
+                                            long balance);
+
+    /** Atomically adds the transfer amount to the balance and counts the
+     *  credit.
+     *
+     * @param index The account index.
+     */
+    abstract void addCredit(int index);
+
+    abstract void countDebit(int index);
+
+    abstract long startBalance(int index);
+
+    abstract long debits(int index);
+
+    abstract long credits(int index);
+
+    /** Debits the transfer amount from an account unless it is empty.
+     *  Balances only ever move by the transfer amount, so a balance below it
+     *  is exactly zero.
+     *
+     * @param index The account index.
+     * @return <tt>false</tt> if the account is empty.
+     */
+    boolean debit(int index) {
+      long b = balance(index);
+      while (true) {
+        if (b < transferCents)
+          return false;
+        long witness = compareAndExchangeBalance(index, b, b - transferCents);
+        if (witness == b)
+          break;
+        casRetries.increment();
+        b = witness;
+      }
+      countDebit(index);
+      totTransactions.increment();
+      return true;
+    }
+
+    void credit(int index) {
+      addCredit(index);
+      totTransactions.increment();
+    }
+
+    @Override
+    public Callable<Void> newTask(final AccountDistribution.Selector srcs,
+                                  final AccountDistribution.Selector dests,
+                                  final TransferJournal.Appender journal) {
+      return new PollingTask() {
+        @Override
+        public Void call() throws InterruptedException {
+          while (running()) {
+            SimulatorEvents.Transfer event = beginTransfer();
+            int src = srcs.next();
+            int dest = dests.nextExcluding(src);
+            long started = recordLatency ? System.nanoTime() : 0;
+            if (debit(src)) {
+              if (journal != null)
+                journal.append(ID_BASE + src, ID_BASE + dest, amountCents);
+              credit(dest);
+              long updated = recordLatency ? System.nanoTime() : 0;
+              if (journal != null)
+                journal.awaitSync();
+              if (recordLatency) {
+                updateLatency.record(updated - started);
+                transferLatency.record(System.nanoTime() - started);
+              }
+              commitTransfer(event, src, dest, 1);
+            } else {
+              accountEmpty(src);
+            }
+          }
+          return null;
+        }
+      };
+    }
+
+    @Override
+    public BigDecimal getBalance(int index) {
+      return Cents.toDecimal(balance(index));
+    }
+
+    @Override
+    public BigDecimal readBalance(int index) {
+      return Cents.toDecimal(balance(index));
+    }
+
+    @Override
+    public BigDecimal getStartBalance(int index) {
+      return Cents.toDecimal(startBalance(index));
+    }
+
+    @Override
+    public long getDebits(int index) {
+      return debits(index);
+    }
+
+    @Override
+    public long getCredits(int index) {
+      return credits(index);
+    }
+
+    @Override
+    public long getConflicts() {
+      return casRetries.sum();
+    }
+
+    @Override
+    public String getStatistics() {
+      return "cas retries: " + casRetries.sum();
+    }
+
+    @Override
+    public void save(BalanceCheckpoint checkpoint) {
+      for (int i = 0; i < numberOfAccounts; i++) {
+        checkpoint.put(i, balance(i), startBalance(i), debits(i),
+            credits(i));
+      }
+    }
+
+    @Override
+    public BigDecimal snapshotTotal(long epoch) {
+      throw new UnsupportedOperationException(
+          "Snapshots require the lock engine");
+    }
+  }
+
+  /**
+   * Compare-and-set engine holding the balances and counters in an atomic
+   * array on the heap.
+   *
+   */
+  private final class ArrayCasEngine extends CasEngine {
+
+    /* Slots of an account: balance, debit count and credit count */
+    private final static int BALANCE = 0, DEBITS = 1, CREDITS = 2, SLOTS = 3;
+
+    /* Account slots laid out contiguously by account index */
+    private final AtomicLongArray state;
+
+    /* Slots from one account to the next, SLOTS unless padded */
+    private final int stride;
+
+    /* Start balance in cents by account index */
+    private final long[] startBalances;
+
+    ArrayCasEngine(BalanceCheckpoint restored) {
+      stride = layout == Layout.PADDED ? PADDED_LONGS : SLOTS;
+      state = new AtomicLongArray(numberOfAccounts * stride);
+      startBalances = new long[numberOfAccounts];
+      initialize(restored);
+    }
+
+    @Override
+    void set(int index, long balance, long start, long debits,
+             long credits) {
+      startBalances[index] = start;
+      state.setPlain(index * stride + BALANCE, balance);
+      state.setPlain(index * stride + DEBITS, debits);
+      state.setPlain(index * stride + CREDITS, credits);
+    }
+
+    @Override
+    long balance(int index) {
+      return state.get(index * stride + BALANCE);
+    }
+
+    @Override
+    long compareAndExchangeBalance(int index, long expected, long balance) {
+      return state.compareAndExchange(index * stride + BALANCE, expected,
+          balance);
+    }
+
+    @Override
+    void addCredit(int index) {
+      state.getAndAdd(index * stride + BALANCE, transferCents);
+      state.getAndIncrement(index * stride + CREDITS);
+    }
+
+    @Override
+    void countDebit(int index) {
+      state.getAndIncrement(index * stride + DEBITS);
+    }
+
+    @Override
+    long startBalance(int index) {
+      return startBalances[index];
+    }
+
+    @Override
+    long debits(int index) {
+      return state.get(index * stride + DEBITS);
+    }
+
+    @Override
+    long credits(int index) {
+      return state.get(index * stride + CREDITS);
+    }
+  }
+
+  /**
+   * Compare-and-set engine holding the accounts in an off-heap table, so
+   * the number of accounts is bounded by the direct memory rather than the
+   * heap and the collector never scans them.
+   *
+   */
+  private final class OffHeapCasEngine extends CasEngine {
+    private final OffHeapAccounts table;
+
+    OffHeapCasEngine(BalanceCheckpoint restored) {
+      table = new OffHeapAccounts(numberOfAccounts,
+          layout == Layout.PADDED ? PADDED_LONGS : OffHeapAccounts.FIELDS);
+      initialize(restored);
+    }
+
+    @Override
+    void set(int index, long balance, long start, long debits,
+             long credits) {
+      table.set(index, OffHeapAccounts.BALANCE, balance);
+      table.set(index, OffHeapAccounts.START, start);
+      table.set(index, OffHeapAccounts.DEBITS, debits);
+      table.set(index, OffHeapAccounts.CREDITS, credits);
+    }
+
+    @Override
+    long balance(int index) {
+      return table.get(index, OffHeapAccounts.BALANCE);
+    }
+
+    @Override
+    long compareAndExchangeBalance(int index, long expected, long balance) {
+      return table.compareAndExchange(index, OffHeapAccounts.BALANCE,
+          expected, balance);
+    }
+
+    @Override
+    void addCredit(int index) {
+      table.getAndAdd(index, OffHeapAccounts.BALANCE, transferCents);
+      table.getAndAdd(index, OffHeapAccounts.CREDITS, 1);
+    }
+
+    @Override
+    void countDebit(int index) {
+      table.getAndAdd(index, OffHeapAccounts.DEBITS, 1);
+    }
+
+    @Override
+    long startBalance(int index) {
+      return table.get(index, OffHeapAccounts.START);
+    }
+
+    @Override
+    long debits(int index) {
+      return table.get(index, OffHeapAccounts.DEBITS);
+    }
+
+    @Override
+    long credits(int index) {
+      return table.get(index, OffHeapAccounts.CREDITS);
+    }
+  }
+
+  /**
+   * Engine committing each transfer with optimistic concurrency control.
+   * Every account has a version word next to its cents balance. A transfer
+   * reads both balances and versions without locking, computes the new
+   * balances and commits them only if neither account changed meanwhile:
+   * the version words are locked in account index order with a
+   * compare-and-set against the versions read, which validates the reads,
+   * then the balances are written and the versions advanced. A failed
+   * validation aborts the transfer, which is retried with fresh reads.
+   *
+   */
+  private final class OccEngine implements TransferEngine {
+
+    /* Slots of an account: version word, balance, debit and credit counts */
+    private final static int VERSION = 0, BALANCE = 1, DEBITS = 2,
+        CREDITS = 3, SLOTS = 4;
+
+    /* Bit of a version word held by a commit, versions are even otherwise */
+    private final static long LOCKED = 1;
+
+    /* Outcomes of a transfer attempt */
+    private final static int COMMITTED = 0, EMPTY = 1, ABORTED = 2;
+
+    /* Account slots laid out contiguously by account index */
+    private final AtomicLongArray state;
+
+    /* Slots from one account to the next, SLOTS unless padded */
+    private final int stride;
+
+    /* Start balance in cents by account index */
+    private final long[] startBalances;
+
+    /* Counters of commits, of aborted attempts and of transfers that were
+       aborted at least once */
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+
+    OccEngine(final BalanceCheckpoint restored) {
+      stride = layout == Layout.PADDED ? PADDED_LONGS : SLOTS;
+      state = new AtomicLongArray(numberOfAccounts * stride);
+      startBalances = new long[numberOfAccounts];
+      forEachAccount(new IntConsumer() {
+        @Override
+        public void accept(int i) {
+          if (restored != null) {
+            startBalances[i] = restored.getStartBalance(i);
+            state.setPlain(i * stride + BALANCE, restored.getBalance(i));
+            state.setPlain(i * stride + DEBITS, restored.getDebits(i));
+            state.setPlain(i * stride + CREDITS, restored.getCredits(i));
+          } else {
+            startBalances[i] = Cents.multiply(transferCents, startUnits(i));
+            state.setPlain(i * stride + BALANCE, startBalances[i]);
+          }
+        }
+      });
+    }
+
+    /** Attempts a transfer once.
+     *
+     * @param src The source account index.
+     * @param dest The destination account index.
+     * @return COMMITTED, EMPTY if the source was validated empty or ABORTED
+     *         if an account changed or was being committed meanwhile.
+     */
+    private int tryTransfer(int src, int dest) {
+      long sv = state.get(src * stride + VERSION);
+      long dv = state.get(dest * stride + VERSION);
+      if (((sv | dv) & LOCKED) != 0)
+        return ABORTED;
+      long sb = state.get(src * stride + BALANCE);
+      long db = state.get(dest * stride + BALANCE);
+      if (sb < transferCents)
+        return state.get(src * stride + VERSION) == sv ? EMPTY : ABORTED;
+      int first = Math.min(src, dest), second = Math.max(src, dest);
+      long fv = first == src ? sv : dv, lv = first == src ? dv : sv;
+      if (!state.compareAndSet(first * stride + VERSION, fv, fv | LOCKED))
+        return ABORTED;
+      if (!state.compareAndSet(second * stride + VERSION, lv, lv | LOCKED)) {
+        state.setRelease(first * stride + VERSION, fv);
+        return ABORTED;
+      }
+      state.setPlain(src * stride + BALANCE, sb - transferCents);
+      state.setPlain(dest * stride + BALANCE, db + transferCents);
+      state.setPlain(src * stride + DEBITS,
+          state.getPlain(src * stride + DEBITS) + 1);
+      state.setPlain(dest * stride + CREDITS,
+          state.getPlain(dest * stride + CREDITS) + 1);
+      state.setRelease(second * stride + VERSION, lv + 2);
+      state.setRelease(first * stride + VERSION, fv + 2);
+      return COMMITTED;
+    }
+
+    @Override
+    public Callable<Void> newTask(final AccountDistribution.Selector srcs,
+                                  final AccountDistribution.Selector dests,
+                                  final TransferJournal.Appender journal) {
+      return new PollingTask() {
+        @Override
+        public Void call() throws InterruptedException {
+          while (running()) {
+            SimulatorEvents.Transfer event = beginTransfer();
+            int src = srcs.next();
+            int dest = dests.nextExcluding(src);
+            long started = recordLatency ? System.nanoTime() : 0;
+            int attempts = 0, outcome;
+            while ((outcome = tryTransfer(src, dest)) == ABORTED) {
+              if (attempts++ == 0)
+                retried.increment();
+              aborts.increment();
+              Thread.yield();
+            }
+            if (outcome == EMPTY) {
+              accountEmpty(src);
+              continue;
+            }
+            commits.increment();
+            totTransactions.add(2);
+            if (journal != null) {
+              journal.append(ID_BASE + src, ID_BASE + dest, amountCents);
+              journal.awaitSync();
+            }
+            if (recordLatency)
+              transferLatency.record(System.nanoTime() - started);
+            commitTransfer(event, src, dest, attempts + 1);
+          }
+          return null;
+        }
+      };
+    }
+
+    @Override
+    public BigDecimal getBalance(int index) {
+      return Cents.toDecimal(state.get(index * stride + BALANCE));
+    }
+
+    @Override
+    public BigDecimal readBalance(int index) {
+      while (true) {
+        long v = state.get(index * stride + VERSION);
+        long b = state.get(index * stride + BALANCE);
+        if ((v & LOCKED) == 0 && state.get(index * stride + VERSION) == v)
+          return Cents.toDecimal(b);
+        readRetries.increment();
+        if ((v & LOCKED) != 0)
+          Thread.yield();
+      }
+    }
+
+    @Override
+    public BigDecimal getStartBalance(int index) {
+      return Cents.toDecimal(startBalances[index]);
+    }
+
+    @Override
+    public long getDebits(int index) {
+      return state.get(index * stride + DEBITS);
+    }
+
+    @Override
+    public long getCredits(int index) {
+      return state.get(index * stride + CREDITS);
+    }
+
+    @Override
+    public long getConflicts() {
+      return aborts.sum();
+    }
+
+    @Override
+    public String getStatistics() {
+      long c = commits.sum(), a = aborts.sum(), r = retried.sum();
+      return "commits: " + c + ", aborts: " + a + ", abort rate: "
+          + String.format("%.3f%%", 100.0 * a / Math.max(1, c + a))
+          + ", retried transfers: " + r + ", retry rate: "
+          + String.format("%.3f%%", 100.0 * r / Math.max(1, c));
+    }
+
+    @Override
+    public void save(BalanceCheckpoint checkpoint) {
+      for (int i = 0; i < numberOfAccounts; i++) {
+        checkpoint.put(i, state.get(i * stride + BALANCE), startBalances[i],
+            getDebits(i), getCredits(i));
+      }
+    }
+
+    @Override
+    public BigDecimal snapshotTotal(long epoch) {
+      throw new UnsupportedOperationException(
+          "Snapshots require the lock engine");
+    }
+  }
+
+  /**
+   * Engine partitioning the accounts across the tasks, each task the single
+   * writer of the cents balances of its partition. A task only debits its own
+   * accounts, so transfers need no locks. The credit of a transfer to another
+   * partition is sent as a message over the bounded lock-free queue of that
+   * partition, its owner applies it. When the run ends the tasks keep
+   * draining their queues until every task has stopped sending, so no credit
+   * is lost.
+   *
+   */
+  private final class PartitionedEngine implements TransferEngine {
+
+    /* Number of partitions, one per task */
+    private final int partitions;
+
+    /* Accounts per partition, the last row may be incomplete */
+    private final int rows;
+
+    /* Slots from one partition to the next, rows unless padded */
+    private final int stride;
+
+    /* Balances, debit and credit counts in cents laid out by partition, see
+       slot(), each only written by the task owning the partition */
+    private final long[] balances, debits, credits;
+
+    /* Start balance in cents by account index */
+    private final long[] startBalances;
+
+    /* Credit queue of each partition, holding destination account indexes */
+    private final MpscIntQueue[] queues;
+
+    /* Number of tasks that may still send credits */
+    private final AtomicInteger senders;
+
+    /* Counters of transfers within and across partitions, and of sends that
+       found the destination queue full */
+    private final LongAdder local = new LongAdder();
+    private final LongAdder cross = new LongAdder();
+    private final LongAdder queueFull = new LongAdder();
+
+    /* Partition of the next task created, tasks are created by one thread */
+    private int nextPartition;
+
+    PartitionedEngine(final BalanceCheckpoint restored) {
+      partitions = threadCount;
+      rows = (numberOfAccounts + partitions - 1) / partitions;
+      stride = layout == Layout.PADDED ? rows + PADDED_LONGS : rows;
+      balances = new long[partitions * stride];
+      debits = new long[partitions * stride];
+      credits = new long[partitions * stride];
+      startBalances = new long[numberOfAccounts];
+      forEachAccount(new IntConsumer() {
+        @Override
+        public void accept(int i) {
+          if (restored != null) {
+            startBalances[i] = restored.getStartBalance(i);
+            balances[slot(i)] = restored.getBalance(i);
+            debits[slot(i)] = restored.getDebits(i);
+            credits[slot(i)] = restored.getCredits(i);
+          } else {
+            startBalances[i] = Cents.multiply(transferCents, startUnits(i));
+            balances[slot(i)] = startBalances[i];
+          }
+        }
+      });
+      queues = new MpscIntQueue[partitions];
+      for (int p = 0; p < partitions; p++)
+        queues[p] = new MpscIntQueue(queueSize);
+      senders = new AtomicInteger(partitions);
+    }
+
+    /** Returns the array slot of an account. Account i belongs to partition
+     *  i % partitions, the accounts of a partition are contiguous so tasks
+     *  only write to each other's cache lines at the partition boundaries,
+     *  which the padded layout separates.
+     *
+     * @param index The account index.
+     * @return The slot in the account arrays.
+     */
+    private int slot(int index) {
+      return index % partitions * stride + index / partitions;
+    }
+
+    @Override
+    public Callable<Void> newTask(AccountDistribution.Selector srcs,
+                                  AccountDistribution.Selector dests,
+                                  TransferJournal.Appender journal) {
+      return new PartitionTask(nextPartition++, srcs, dests, journal);
+    }
+
+    @Override
+    public BigDecimal getBalance(int index) {
+      return Cents.toDecimal(balances[slot(index)]);
+    }
+
+    @Override
+    public BigDecimal readBalance(int index) {
+      throw new UnsupportedOperationException(
+          "Inquiries require another engine");
+    }
+
+    @Override
+    public BigDecimal getStartBalance(int index) {
+      return Cents.toDecimal(startBalances[index]);
+    }
+
+    @Override
+    public long getDebits(int index) {
+      return debits[slot(index)];
+    }
+
+    @Override
+    public long getCredits(int index) {
+      return credits[slot(index)];
+    }
+
+    @Override
+    public long getConflicts() {
+      return queueFull.sum();
+    }
+
+    @Override
+    public String getStatistics() {
+      long l = local.sum(), c = cross.sum();
+      return "partitions: " + partitions + ", local: " + l + ", cross: " + c
+          + ", local ratio: "
+          + String.format("%.1f%%", 100.0 * l / Math.max(1, l + c))
+          + ", queue full: " + queueFull.sum();
+    }
+
+    @Override
+    public void save(BalanceCheckpoint checkpoint) {
+      for (int i = 0; i < numberOfAccounts; i++) {
+        int slot = slot(i);
+        checkpoint.put(i, balances[slot], startBalances[i], debits[slot],
+            credits[slot]);
+      }
+    }
+
+    @Override
+    public BigDecimal snapshotTotal(long epoch) {
+      throw new UnsupportedOperationException(
+          "Snapshots require the lock engine");
+    }
+
+    /**
+     * The task owning a partition.
+     *
+     */
+    private final class PartitionTask extends PollingTask {
+      private final int partition;
+      private final MpscIntQueue inbox;
+      private final AccountDistribution.Selector srcs, dests;
+      private final TransferJournal.Appender journal;
+
+      PartitionTask(int partition, AccountDistribution.Selector srcs,
+                    AccountDistribution.Selector dests,
+                    TransferJournal.Appender journal) {
+        this.partition = partition;
+        this.srcs = srcs;
+        this.dests = dests;
+        this.journal = journal;
+        inbox = queues[partition];
+      }
+
+      @Override
+      public Void call() throws InterruptedException {
+        try {
+          while (running()) {
+            drain();
+            transfer();
+          }
+        } finally {
+          senders.decrementAndGet();
+        }
+        while (true) {
+          boolean stopped = senders.get() == 0;
+          drain();
+          if (stopped)
+            return null;
+          if (pausing)
+            pause();
+          Thread.yield();
+        }
+      }
+
+      /** Waits for a checkpoint to be written, see writeCheckpoint(). The
+       *  inbox is drained until every task has stopped, so no sender waits
+       *  on a full queue, and once more so no credit is in flight.
+       */
+      @Override
+      void pause() {
+        int phase = checkpointGate.arrive();
+        while (checkpointGate.getPhase() == phase) {
+          drain();
+          Thread.yield();
+        }
+        drain();
+        checkpointGate.arriveAndAwaitAdvance();
+        checkpointGate.arriveAndAwaitAdvance();
+      }
+
+      /** Performs one transfer from an account of this partition. The source
+       *  is drawn from the source distribution and moved to the account of
+       *  this partition in the same row. A credit to another partition is
+       *  queued before the debit, so the transfer is dropped without a trace
+       *  if the run stops while the queue is full, for instance because its
+       *  owner failed and no longer drains it.
+       *
+       * @throws InterruptedException if interrupted waiting for the journal.
+       */
+      private void transfer() throws InterruptedException {
+        SimulatorEvents.Transfer event = beginTransfer();
+        int s = srcs.next();
+        int src = s - s % partitions + partition;
+        if (src >= numberOfAccounts)
+          src -= partitions;
+        int dest = dests.nextExcluding(src);
+        long started = recordLatency ? System.nanoTime() : 0;
+        int slot = slot(src);
+        if (balances[slot] == 0) {
+          accountEmpty(src);
+          return;
+        }
+        int owner = dest % partitions;
+        if (owner != partition) {
+          while (!queues[owner].offer(dest)) {
+            if (stopping)
+              return;
+            queueFull.increment();
+            drain();
+            Thread.yield();
+          }
+        }
+        if (journal != null)
+          journal.append(ID_BASE + src, ID_BASE + dest, amountCents);
+        balances[slot] = Cents.subtract(balances[slot], transferCents);
+        debits[slot]++;
+        totTransactions.increment();
+        if (owner == partition) {
+          credit(dest);
+          local.increment();
+        } else {
+          cross.increment();
+        }
+        long updated = recordLatency ? System.nanoTime() : 0;
+        if (journal != null)
+          journal.awaitSync();
+        if (recordLatency) {
+          updateLatency.record(updated - started);
+          transferLatency.record(System.nanoTime() - started);
+        }
+        commitTransfer(event, src, dest, 1);
+      }
+
+      /** Keeps applying the credits queued for this partition while paused,
+       *  so a sender waiting on the full queue gets to pause as well.
+       */
+      @Override
+      void idle() {
+        drain();
+        super.idle();
+      }
+
+      /** Applies the credits queued for this partition. */
+      private void drain() {
+        for (int dest = inbox.poll(); dest != MpscIntQueue.EMPTY;
+             dest = inbox.poll())
+          credit(dest);
+      }
+
+      private void credit(int dest) {
+        int slot = slot(dest);
+        balances[slot] = Cents.add(balances[slot], transferCents);
+        credits[slot]++;
+        totTransactions.increment();
+      }
+    }
+  }
+
+  /**
+   * The task that each thread executes to transfer amounts.
+   *
+   */
+  private final class TransferTask extends PollingTask {
+    private final AccountStore<Account> accounts;
+    private final AccountDistribution.Selector srcs, dests;
+    private final TransferJournal.Appender journal;
+
+    /* Consecutive failed lock acquisitions, drives the backoff */
+    private int failures;
+
+    /* Start time of the pending transfer when latencies are recorded */
+    private long started;
+
+    /* Failed lock acquisitions of the pending transfer for the flight
+       recorder, only allocated once an acquisition failed while the event
+       is enabled */
+    private SimulatorEvents.LockContention contention;
+
+    TransferTask(AccountStore<Account> accounts,
+                 AccountDistribution.Selector srcs,
+                 AccountDistribution.Selector dests,
+                 TransferJournal.Appender journal) {
+      this.accounts = accounts;
+      this.srcs = srcs;
+      this.dests = dests;
+      this.journal = journal;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      SimulatorEvents.Transfer event = null;
+      while (running()) {
+        if (failures == 0)
+          event = beginTransfer();
+        int s = srcs.next();
+        Account src = accounts.get(s);
+        Account dest = accounts.get(dests.nextExcluding(s));
+        if (recordLatency && failures == 0)
+          started = System.nanoTime();
+        long epoch = snapshots == null ? 0 : snapshots.enter(slot);
+        boolean applied = false;
+        int attempts = failures + 1;
+        try {
+          if (lock(src, dest)) {
+            if (contention != null)
+              commitContention(src, dest);
+            applied = transfer(src, dest, epoch);
+            failures = 0;
+          } else {
+            lockFailures.increment();
+            if (failures++ == 0 && contentionEvents) {
+              contention = new SimulatorEvents.LockContention();
+              contention.begin();
+            }
+          }
+        } finally {
+          if (snapshots != null)
+            snapshots.exit(slot);
+        }
+        if (applied) {
+          if (journal != null) {
+            journal.append(src.getID(), dest.getID(), amountCents);
+            journal.awaitSync();
+          }
+          if (recordLatency)
+            transferLatency.record(System.nanoTime() - started);
+          commitTransfer(event, s, dest.getID() - ID_BASE, attempts);
+        }
+        if (failures > 0)
+          backoff.pause(failures, backoffNanos);
+      }
+      return null;
+    }
+
+    /** Records the failed lock acquisitions of a transfer that got its
+     *  locks with the flight recorder, if enabled.
+     *
+     * @param src The source account.
+     * @param dest The destination account.
+     */
+    private void commitContention(Account src, Account dest) {
+      contention.end();
+      if (contention.shouldCommit()) {
+        contention.source = src.getID();
+        contention.destination = dest.getID();
+        contention.failures = failures;
+        contention.locking = lockStrategy.name().toLowerCase();
+        contention.backoff = backoff.name().toLowerCase();
+        contention.commit();
+      }
+      contention = null;
+    }
+
+    /** Applies a transfer between two locked accounts unless the source is
+     *  empty, then releases the locks. The transfer is journaled by the
+     *  caller once the locks are released.
+     *
+     * @param src The source account.
+     * @param dest The destination account.
+     * @param epoch The snapshot epoch entered, zero when not auditing.
+     * @return <tt>true</tt> if the transfer was applied.
+     */
+    private boolean transfer(Account src, Account dest, long epoch) {
+      long locked = recordLatency ? System.nanoTime() : 0;
+      long updated = 0;
+      boolean applied = false;
+      try {
+        if (src.isEmptyBalance()) {
+          accountEmpty(src.getID() - ID_BASE);
+        } else {
+          src.capture(epoch);
+          dest.capture(epoch);
+          src.debit();
+          dest.credit();
+          applied = true;
+          if (recordLatency)
+            updated = System.nanoTime();
+        }
+      } finally {
+        dest.unlock();
+        src.unlock();
+      }
+      if (updated != 0) {
+        lockLatency.record(locked - started);
+        updateLatency.record(updated - locked);
+      }
+      return applied;
+    }
+
+    /** Acquires the locks of both accounts using the configured strategy.
+     *  Either both locks are held on return or neither is.
+     *
+     * @param src The source account.
+     * @param dest The destination account.
+     * @return <tt>true</tt> if both locks were acquired.
+     * @throws InterruptedException if interrupted during a timed wait.
+     */
+    private boolean lock(Account src, Account dest)
+        throws InterruptedException {
+      if (lockStrategy == LockStrategy.TRYLOCK) {
+        if (!src.lock())
+          return false;
+        if (!dest.lock()) {
+          src.unlock();
+          return false;
+        }
+        return true;
+      }
+      Account first = src.getID() < dest.getID() ? src : dest;
+      Account second = first == src ? dest : src;
+      if (lockStrategy == LockStrategy.ORDERED) {
+        lockBlocking(first);
+        lockBlocking(second);
+        return true;
+      }
+      if (!first.lock(lockTimeout))
+        return false;
+      if (!second.lock(lockTimeout)) {
+        first.unlock();
+        return false;
+      }
+      return true;
+    }
+  }
+
+  /** Acquires the lock of an account, waiting for it if necessary. Having to
+   *  wait is counted as a lock failure.
+   *
+   * @param a The account to lock.
+   */
+  private void lockBlocking(Account a) {
+    if (!a.lock()) {
+      lockFailures.increment();
+      a.lockBlocking();
+    }
+  }
+
+  /**
+   * The task that applies transfers in batches. A batch is drawn, its debits
+   * are applied grouped by source account and then the credits of the
+   * accepted transfers grouped by destination account, so each account lock
+   * is taken once per batch. Only one lock is held at a time, the transfers
+   * of a batch are in flight between the two phases. An account that is
+   * both a source and a destination of a batch is locked once in each
+   * phase, never twice at once.
+   *
+   */
+  private final class BatchTransferTask extends PollingTask {
+    private final AccountStore<Account> accounts;
+    private final AccountDistribution.Selector srcs, dests;
+    private final TransferJournal.Appender journal;
+
+    /* Destination of each transfer of the batch */
+    private final int[] destIndex;
+
+    /* Sort keys, account index in the high and transfer in the low half */
+    private final long[] keys;
+
+    BatchTransferTask(AccountStore<Account> accounts,
+                      AccountDistribution.Selector srcs,
+                      AccountDistribution.Selector dests,
+                      TransferJournal.Appender journal) {
+      this.accounts = accounts;
+      this.srcs = srcs;
+      this.dests = dests;
+      this.journal = journal;
+      destIndex = new int[batchSize];
+      keys = new long[batchSize];
+    }
+
+    @Override
+    public Void call() throws InterruptedException {
+      while (running()) {
+        long started = recordLatency ? System.nanoTime() : 0;
+        for (int i = 0; i < batchSize; i++) {
+          int src = srcs.next();
+          destIndex[i] = dests.nextExcluding(src);
+          keys[i] = (long) src << 32 | i;
+        }
+        Arrays.sort(keys);
+        long epoch = snapshots == null ? 0 : snapshots.enter(slot);
+        int accepted = 0;
+        try {
+          for (int g = 0, end; g < batchSize; g = end) {
+            int index = (int) (keys[g] >>> 32);
+            end = groupEnd(g, batchSize);
+            Account src = accounts.get(index);
+            int debited;
+            lockBlocking(src);
+            try {
+              src.capture(epoch);
+              debited = src.debit(end - g);
+              if (debited < end - g)
+                accountEmpty(index);
+            } finally {
+              src.unlock();
+            }
+            for (int i = g; i < g + debited; i++) {
+              int t = (int) keys[i];
+              if (journal != null)
+                journal.append(ID_BASE + index, ID_BASE + destIndex[t],
+                    amountCents);
+              keys[accepted++] = (long) destIndex[t] << 32 | t;
+            }
+          }
+          Arrays.sort(keys, 0, accepted);
+          for (int g = 0, end; g < accepted; g = end) {
+            end = groupEnd(g, accepted);
+            Account dest = accounts.get((int) (keys[g] >>> 32));
+            lockBlocking(dest);
+            try {
+              dest.capture(epoch);
+              dest.credit(end - g);
+            } finally {
+              dest.unlock();
+            }
+          }
+        } finally {
+          if (snapshots != null)
+            snapshots.exit(slot);
+        }
+        if (journal != null)
+          journal.awaitSync();
+        totTransactions.add(2L * accepted);
+        if (recordLatency && accepted > 0)
+          transferLatency.record(System.nanoTime() - started, accepted);
+      }
+      return null;
+    }
+
+    /** Returns the end of the group of sort keys with the same account.
+     *
+     * @param g The index of the first key of the group.
+     * @param length The number of sorted keys.
+     * @return The index following the last key of the group.
+     */
+    private int groupEnd(int g, int length) {
+      long account = keys[g] >>> 32;
+      int end = g + 1;
+      while (end < length && keys[end] >>> 32 == account)
+        end++;
+      return end;
+    }
+  }
+
+  /**
+   * The task that applies multi-leg transfers. A transfer debits its source
+   * once per leg and credits a destination per leg, all or nothing. The
+   * locks of every account involved are taken in account ID order, so tasks
+   * never wait on each other in a cycle, and held until all legs are
+   * applied. The lock hold time grows with the number of legs.
+   *
+   */
+  private final class MultiLegTransferTask extends PollingTask {
+    private final AccountStore<Account> accounts;
+    private final AccountDistribution.Selector srcs, dests;
+    private final TransferJournal.Appender journal;
+
+    /* Destination of each leg */
+    private final int[] destIndex;
+
+    /* Indexes of the accounts involved sorted in lock order, duplicates
+       are locked once */
+    private final int[] lockOrder;
+
+    MultiLegTransferTask(AccountStore<Account> accounts,
+                         AccountDistribution.Selector srcs,
+                         AccountDistribution.Selector dests,
+                         TransferJournal.Appender journal) {
+      this.accounts = accounts;
+      this.srcs = srcs;
+      this.dests = dests;
+      this.journal = journal;
+      destIndex = new int[legs];
+      lockOrder = new int[legs + 1];
+    }
+
+    @Override
+    public Void call() throws InterruptedException {
+      while (running()) {
+        SimulatorEvents.Transfer event = beginTransfer();
+        long started = recordLatency ? System.nanoTime() : 0;
+        int s = srcs.next();
+        lockOrder[0] = s;
+        for (int i = 0; i < legs; i++) {
+          destIndex[i] = dests.nextExcluding(s);
+          lockOrder[i + 1] = destIndex[i];
+        }
+        Arrays.sort(lockOrder);
+        long epoch = snapshots == null ? 0 : snapshots.enter(slot);
+        for (int i = 0; i <= legs; i++) {
+          if (i == 0 || lockOrder[i] != lockOrder[i - 1])
+            lockBlocking(accounts.get(lockOrder[i]));
+        }
+        long locked = recordLatency ? System.nanoTime() : 0;
+        long updated = 0;
+        boolean applied = false;
+        try {
+          Account src = accounts.get(s);
+          if (src.isEmptyBalance()) {
+            accountEmpty(s);
+          } else if (!src.covers(legs)) {
+            insufficientFunds.increment();
+          } else {
+            for (int i = 0; i <= legs; i++)
+              accounts.get(lockOrder[i]).capture(epoch);
+            src.debit(legs);
+            for (int i = 0; i < legs; i++)
+              accounts.get(destIndex[i]).credit(1);
+            totTransactions.add(2L * legs);
+            multiLegTransfers.increment();
+            applied = true;
+            if (recordLatency)
+              updated = System.nanoTime();
+          }
+        } finally {
+          if (snapshots != null)
+            snapshots.exit(slot);
+          for (int i = legs; i >= 0; i--) {
+            if (i == 0 || lockOrder[i] != lockOrder[i - 1])
+              accounts.get(lockOrder[i]).unlock();
+          }
+        }
+        if (applied && journal != null) {
+          for (int i = 0; i < legs; i++)
+            journal.append(ID_BASE + s, ID_BASE + destIndex[i], amountCents);
+          journal.awaitSync();
+        }
+        if (applied)
+          commitTransfer(event, s, destIndex[0], 1);
+        if (updated != 0) {
+          lockLatency.record(locked - started);
+          updateLatency.record(updated - locked);
+          transferLatency.record(System.nanoTime() - started);
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * The task that makes balance inquiries. It reads the balance of accounts
+   * drawn from the source distribution while the transfers run, without
+   * taking their locks.
+   *
+   */
+  private final class InquiryTask extends PollingTask {
+    private final AccountDistribution.Selector accounts;
+
+    InquiryTask(AccountDistribution.Selector accounts) {
+      this.accounts = accounts;
+    }
+
+    @Override
+    public Void call() {
+      while (running()) {
+        int index = accounts.next();
+        long started = recordLatency ? System.nanoTime() : 0;
+        if (engine.readBalance(index).signum() < 0)
+          throw new IllegalStateException("Negative balance read from "
+              + (ID_BASE + index));
+        inquiries.increment();
+        if (recordLatency)
+          inquiryLatency.record(System.nanoTime() - started);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Represents an account to credit or debit the transfer amount to/from.
+   * Subclasses hold the balance in a specific representation. The balance and
+   * the debit and credit counters are only updated while the lock is held.
+   * Balance updates are bracketed by a seqlock version, so inquiries read the
+   * balance optimistically without the lock: a read is only valid if the
+   * version was even and did not change meanwhile, otherwise it is retried.
+   *
+   */
+  private abstract class Account {
+    private final int accountID;
+    private long debits;
+    private long credits;
+    private final ReentrantLock lock;
+
+    /* Epoch of the latest snapshot the balance was captured for */
+    private long capturedEpoch;
+
+    /* Seqlock version of the balance, odd while an update is in progress.
+       Only written with the lock held, accessed through ACCOUNT_VERSION */
+    private long version;
+
+    Account(int accountID, ReentrantLock lock) {
+      this.accountID = accountID;
+      this.lock = lock;
+    }
+
+    /** Sets the debit and credit counts of an account restored from a
+     *  checkpoint, before it is shared with the tasks.
+     *
+     * @param debits The number of debits.
+     * @param credits The number of credits.
+     */
+    void restoreCounts(long debits, long credits) {
+      this.debits = debits;
+      this.credits = credits;
+    }
+
+    void unlock() {
+      lock.unlock();
+    }
+
+    abstract boolean isEmptyBalance();
+
+    /** Returns whether the balance covers the transfer amount the specified
+     *  number of times.
+     *
+     * @param count The number of debits.
+     * @return <tt>true</tt> if all the debits can be applied.
+     */
+    abstract boolean covers(int count);
+
+    boolean lock() {
+      return lock.tryLock();
+    }
+
+    boolean lock(long nanos) throws InterruptedException {
+      return lock.tryLock(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void lockBlocking() {
+      lock.lock();
+    }
+
+    int getID() {
+      return accountID;
+    }
+
+    /** Debits the transfer amount from the balance. */
+    abstract void debit();
+
+    /** Credits the transfer amount to the balance. */
+    abstract void credit();
+
+    /** Debits the transfer amount up to the specified number of times, as
+     *  far as the balance allows. The total transaction count is left to the
+     *  caller.
+     *
+     * @param count The number of debits requested.
+     * @return The number of debits applied.
+     */
+    abstract int debit(int count);
+
+    /** Credits the transfer amount the specified number of times. The total
+     *  transaction count is left to the caller.
+     *
+     * @param count The number of credits.
+     */
+    abstract void credit(int count);
+
+    void countDebit() {
+      totTransactions.increment();
+      debits++;
+    }
+
+    void countCredit() {
+      totTransactions.increment();
+      credits++;
+    }
+
+    void countDebits(int n) {
+      debits += n;
+    }
+
+    void countCredits(int n) {
+      credits += n;
+    }
+
+    long getDebits() {
+      return debits;
+    }
+
+    long getCredits() {
+      return credits;
+    }
+
+    abstract BigDecimal getBalance();
+
+    abstract BigDecimal getStartBalance();
+
+    /** Captures the balance for the snapshot of an epoch, unless it already
+     *  was. Called with the lock held, by a task before it updates the
+     *  balance in that epoch and by the auditor reading the snapshot.
+     *
+     * @param epoch The epoch entered, zero when not auditing.
+     */
+    void capture(long epoch) {
+      if (capturedEpoch < epoch) {
+        captureBalance();
+        capturedEpoch = epoch;
+      }
+    }
+
+    /** Marks the start of a balance update, the version is odd until
+     *  endUpdate(). Called with the lock held.
+     */
+    void beginUpdate() {
+      ACCOUNT_VERSION.setOpaque(this, version + 1);
+      VarHandle.releaseFence();
+    }
+
+    /** Marks the end of a balance update, publishing the new balance. */
+    void endUpdate() {
+      ACCOUNT_VERSION.setRelease(this, version + 1);
+    }
+
+    /** Starts an optimistic read of the balance.
+     *
+     * @return The version to validate the read with.
+     */
+    long readVersion() {
+      return (long) ACCOUNT_VERSION.getAcquire(this);
+    }
+
+    /** Validates an optimistic read of the balance, counting a retry if it
+     *  is not valid. A read that started during an update yields, the
+     *  updating thread may have been descheduled.
+     *
+     * @param v The version returned by readVersion() before the read.
+     * @return <tt>true</tt> if no update overlapped the read.
+     */
+    boolean validate(long v) {
+      VarHandle.acquireFence();
+      if ((v & 1) == 0 && (long) ACCOUNT_VERSION.getOpaque(this) == v)
+        return true;
+      readRetries.increment();
+      if ((v & 1) != 0)
+        Thread.yield();
+      return false;
+    }
+
+    /** Reads the balance without the lock, never blocking the transfers.
+     *
+     * @return The balance.
+     */
+    abstract BigDecimal readBalance();
+
+    /** Saves the current balance as the captured one. */
+    abstract void captureBalance();
+
+    abstract BigDecimal getCapturedBalance();
+
+    @Override
+    public int hashCode() {
+      return accountID;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (o == this)
+        return true;
+      if (!(o instanceof Account))
+        return false;
+      return accountID == ((Account) o).getID();
+    }
+  }
+
+  /**
+   * Account holding its balance as an immutable decimal.
+   *
+   */
+  private class DecimalAccount extends Account {
+    private BigDecimal balance;
+    private final BigDecimal startBalance;
+    private BigDecimal capturedBalance;
+
+    DecimalAccount(int accountID, ReentrantLock lock, BigDecimal balance,
+                   BigDecimal start) {
+      super(accountID, lock);
+      this.balance = balance;
+      startBalance = start;
+    }
+
+    @Override
+    boolean isEmptyBalance() {
+      return balance.compareTo(ZERO) == 0 ? true : false;
+    }
+
+    @Override
+    boolean covers(int count) {
+      return balance.compareTo(
+          transferAmt.multiply(BigDecimal.valueOf(count))) >= 0;
+    }
+
+    @Override
+    void debit() {
+      beginUpdate();
+      balance = balance.subtract(transferAmt);
+      endUpdate();
+      countDebit();
+    }
+
+    @Override
+    void credit() {
+      beginUpdate();
+      balance = balance.add(transferAmt);
+      endUpdate();
+      countCredit();
+    }
+
+    @Override
+    int debit(int count) {
+      int n = balance.divideToIntegralValue(transferAmt)
+          .min(BigDecimal.valueOf(count)).intValue();
+      beginUpdate();
+      balance = balance.subtract(transferAmt.multiply(BigDecimal.valueOf(n)));
+      endUpdate();
+      countDebits(n);
+      return n;
+    }
+
+    @Override
+    void credit(int count) {
+      beginUpdate();
+      balance = balance.add(transferAmt.multiply(BigDecimal.valueOf(count)));
+      endUpdate();
+      countCredits(count);
+    }
+
+    @Override
+    BigDecimal getBalance() {
+      return balance;
+    }
+
+    @Override
+    BigDecimal readBalance() {
+      while (true) {
+        long v = readVersion();
+        BigDecimal b = balance;
+        if (validate(v))
+          return b;
+      }
+    }
+
+    @Override
+    void captureBalance() {
+      capturedBalance = balance;
+    }
+
+    @Override
+    BigDecimal getCapturedBalance() {
+      return capturedBalance;
+    }
+
+    @Override
+    BigDecimal getStartBalance() {
+      return startBalance;
+    }
+  }
+
+  /**
+   * Account holding its balance as a scaled number of cents, so debits and
+   * credits do not allocate.
+   *
+   */
+  private class CentsAccount extends Account {
+    private long balance;
+    private final long startBalance;
+    private long capturedBalance;
+
+    CentsAccount(int accountID, ReentrantLock lock, long balance,
+                 long start) {
+      super(accountID, lock);
+      this.balance = balance;
+      startBalance = start;
+    }
+
+    @Override
+    boolean isEmptyBalance() {
+      return balance == 0;
+    }
+
+    @Override
+    boolean covers(int count) {
+      return balance / transferCents >= count;
+    }
+
+    @Override
+    void debit() {
+      beginUpdate();
+      balance = Cents.subtract(balance, transferCents);
+      endUpdate();
+      countDebit();
+    }
+
+    @Override
+    void credit() {
+      beginUpdate();
+      balance = Cents.add(balance, transferCents);
+      endUpdate();
+      countCredit();
+    }
+
+    @Override
+    int debit(int count) {
+      int n = (int) Math.min(count, balance / transferCents);
+      beginUpdate();
+      balance = Cents.subtract(balance, Cents.multiply(transferCents, n));
+      endUpdate();
+      countDebits(n);
+      return n;
+    }
+
+    @Override
+    void credit(int count) {
+      beginUpdate();
+      balance = Cents.add(balance, Cents.multiply(transferCents, count));
+      endUpdate();
+      countCredits(count);
+    }
+
+    @Override
+    BigDecimal getBalance() {
+      return Cents.toDecimal(balance);
+    }
+
+    @Override
+    BigDecimal readBalance() {
+      while (true) {
+        long v = readVersion();
+        long b = balance;
+        if (validate(v))
+          return Cents.toDecimal(b);
+      }
+    }
+
+    @Override
+    void captureBalance() {
+      capturedBalance = balance;
+    }
+
+    @Override
+    BigDecimal getCapturedBalance() {
+      return Cents.toDecimal(capturedBalance);
+    }
+
+    @Override
+    BigDecimal getStartBalance() {
+      return Cents.toDecimal(startBalance);
+    }
+  }
+
+  /**
+   * Decimal account of the padded layout. The fields of a subclass follow
+   * those of its superclasses, so the padding keeps the object allocated
+   * next off the cache lines of the balance, counters and version.
+   *
+   */
+  private final class PaddedDecimalAccount extends DecimalAccount {
+    /* Cache line pair of padding, never read */
+    long p0, p1, p2, p3, p4, p5, p6, p7;
+    long p8, p9, p10, p11, p12, p13, p14, p15;
+
+    PaddedDecimalAccount(int accountID, ReentrantLock lock,
+                         BigDecimal balance, BigDecimal start) {
+      super(accountID, lock, balance, start);
+    }
+  }
+
+  /**
+   * Cents account of the padded layout, see PaddedDecimalAccount.
+   *
+   */
+  private final class PaddedCentsAccount extends CentsAccount {
+    /* Cache line pair of padding, never read */
+    long p0, p1, p2, p3, p4, p5, p6, p7;
+    long p8, p9, p10, p11, p12, p13, p14, p15;
+
+    PaddedCentsAccount(int accountID, ReentrantLock lock, long balance,
+                       long start) {
+      super(accountID, lock, balance, start);
     }
   }
 }
@@ -0,0 +1,97 @@
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Store of the simulator accounts. Accounts are addressed by their zero-based
+ * index, that is the account ID minus the ID base, so lookups never need to
+ * box the ID.
+ *
+ * @param <T> The type of account held in the store.
+ */
+interface AccountStore<T> {
+
+  /** Stores an account at the specified index.
+   *
+   * @param index The zero-based account index.
+   * @param account The account to store.
+   */
+  void put(int index, T account);
+
+  /** Returns the account at the specified index.
+   *
+   * @param index The zero-based account index.
+   * @return The account, or <tt>null</tt> if none was stored.
+   */
+  T get(int index);
+
+  /**
+   * The available store implementations.
+   *
+   */
+  enum Type {
+    /* Dense array indexed by account index */
+    ARRAY,
+    /* Hash map keyed by account ID, kept for comparison */
+    MAP;
+
+    /** Creates an empty store of this type.
+     *
+     * @param size The number of accounts the store will hold.
+     * @param idBase The ID of the account at index zero.
+     * @return An empty store.
+     */
+    <T> AccountStore<T> create(int size, int idBase) {
+      return this == ARRAY ? new ArrayStore<T>(size)
+                           : new MapStore<T>(size, idBase);
+    }
+  }
+
+  /**
+   * Store backed by an array, an account's index is its array slot.
+   *
+   */
+  final class ArrayStore<T> implements AccountStore<T> {
+    private final Object[] accounts;
+
+    ArrayStore(int size) {
+      accounts = new Object[size];
+    }
+
+    @Override
+    public void put(int index, T account) {
+      accounts[index] = account;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+      return (T) accounts[index];
+    }
+  }
+
+  /**
+   * Store backed by a hash map of account IDs to accounts. Every lookup boxes
+   * the account ID.
+   *
+   */
+  final class MapStore<T> implements AccountStore<T> {
+    private final Map<Integer, T> accounts;
+    private final int idBase;
+
+    MapStore(int size, int idBase) {
+      accounts = new HashMap<Integer, T>(size * 2);
+      this.idBase = idBase;
+    }
+
+    @Override
+    public void put(int index, T account) {
+      accounts.put(Integer.valueOf(idBase + index), account);
+    }
+
+    @Override
+    public T get(int index) {
+      return accounts.get(Integer.valueOf(idBase + index));
+    }
+  }
+}
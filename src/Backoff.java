@@ -0,0 +1,58 @@
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Policies for waiting after a failed attempt to acquire the account locks
+ * before trying again.
+ *
+ */
+enum Backoff {
+  /* Retry immediately */
+  NONE {
+    @Override
+    void pause(int attempt, long nanos) {
+    }
+  },
+  /* Busy-wait for a fixed number of spin hints */
+  SPIN {
+    @Override
+    void pause(int attempt, long nanos) {
+      for (int i = 0; i < SPINS; i++)
+        Thread.onSpinWait();
+    }
+  },
+  /* Yield the processor to another thread */
+  YIELD {
+    @Override
+    void pause(int attempt, long nanos) {
+      Thread.yield();
+    }
+  },
+  /* Park for the base duration */
+  PARK {
+    @Override
+    void pause(int attempt, long nanos) {
+      LockSupport.parkNanos(nanos);
+    }
+  },
+  /* Park for the base duration doubled on each consecutive failure */
+  EXP {
+    @Override
+    void pause(int attempt, long nanos) {
+      LockSupport.parkNanos(nanos << Math.min(attempt - 1, MAX_SHIFT));
+    }
+  };
+
+  /* Spin hints issued by a single SPIN pause */
+  private final static int SPINS = 32;
+
+  /* Largest doubling applied by EXP, caps the pause at 1024 times the base */
+  private final static int MAX_SHIFT = 10;
+
+  /** Waits before the next attempt.
+   *
+   * @param attempt The number of consecutive failed attempts, at least one.
+   * @param nanos The base pause in nanoseconds for the parking policies.
+   */
+  abstract void pause(int attempt, long nanos);
+}
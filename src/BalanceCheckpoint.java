@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * Checkpoints of the account balances and counters in a memory-mapped file
+ * of fixed-width little-endian fields. The file holds a header and two
+ * copies of the account table, each copy led by its sequence number and the
+ * total transaction count:
+ * <pre>
+ *   header: magic int, version int, accounts int, unused int, amount long
+ *   copy:   sequence long, transactions long,
+ *           per account: balance, start balance, debits, credits longs
+ * </pre>
+ * Amounts are in cents. A checkpoint overwrites the older copy, forces it to
+ * the storage device and only then publishes its higher sequence number, so
+ * a checkpoint torn by a crash leaves the previous one intact. Restoring
+ * reads the copy with the highest sequence, its cost only depends on the
+ * number of accounts.
+ *
+ */
+final class BalanceCheckpoint {
+
+  /* "ACKP", identifies a checkpoint file */
+  private final static int MAGIC = 0x41434b50;
+
+  private final static int VERSION = 1;
+
+  /* Offsets of the header fields */
+  private final static int MAGIC_OFFSET = 0, VERSION_OFFSET = 4,
+      ACCOUNTS_OFFSET = 8, AMOUNT_OFFSET = 16, HEADER_SIZE = 24;
+
+  /* Offsets of the copy fields and size of an account entry */
+  private final static int SEQUENCE_OFFSET = 0, TRANSACTIONS_OFFSET = 8,
+      TABLE_OFFSET = 16, ENTRY_SIZE = 4 * 8;
+
+  /* Offsets of the fields of an account entry */
+  private final static int BALANCE = 0, START = 8, DEBITS = 16, CREDITS = 24;
+
+  /* Most accounts a file can hold, both copies are mapped as one buffer */
+  final static int MAX_ACCOUNTS =
+      ((Integer.MAX_VALUE - HEADER_SIZE) / 2 - TABLE_OFFSET) / ENTRY_SIZE;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer map;
+  private final int copySize;
+
+  /* Copy holding the latest checkpoint, the other one is written next */
+  private int latest;
+
+  /* Sequence number of the latest checkpoint, zero if none was written */
+  private long sequence;
+
+  private BalanceCheckpoint(FileChannel channel, int accounts)
+      throws IOException {
+    this.channel = channel;
+    copySize = TABLE_OFFSET + accounts * ENTRY_SIZE;
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+        fileSize(accounts));
+    map.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /** Creates an empty checkpoint file, replacing an existing one.
+   *
+   * @param file The checkpoint file.
+   * @param accounts The number of accounts.
+   * @param amount The transfer amount in cents.
+   * @return The checkpoint, without a checkpoint written yet.
+   * @throws IOException if the file cannot be created or mapped.
+   */
+  static BalanceCheckpoint create(Path file, int accounts, long amount)
+      throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    BalanceCheckpoint c = new BalanceCheckpoint(channel, accounts);
+    c.map.putInt(MAGIC_OFFSET, MAGIC);
+    c.map.putInt(VERSION_OFFSET, VERSION);
+    c.map.putInt(ACCOUNTS_OFFSET, accounts);
+    c.map.putLong(AMOUNT_OFFSET, amount);
+    c.map.force();
+    return c;
+  }
+
+  /** Opens an existing checkpoint file to restore its latest checkpoint.
+   *  Later checkpoints are written to the same file.
+   *
+   * @param file The checkpoint file.
+   * @param accounts The number of accounts expected.
+   * @param amount The transfer amount in cents expected.
+   * @return The checkpoint.
+   * @throws IOException if the file cannot be read, is not a checkpoint of
+   *         the expected accounts and amount or holds no checkpoint.
+   */
+  static BalanceCheckpoint open(Path file, int accounts, long amount)
+      throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      if (channel.size() != fileSize(accounts))
+        throw new IOException(file + " is not a checkpoint of " + accounts
+            + " accounts");
+      BalanceCheckpoint c = new BalanceCheckpoint(channel, accounts);
+      if (c.map.getInt(MAGIC_OFFSET) != MAGIC
+          || c.map.getInt(VERSION_OFFSET) != VERSION
+          || c.map.getInt(ACCOUNTS_OFFSET) != accounts)
+        throw new IOException(file + " is not a checkpoint of " + accounts
+            + " accounts");
+      if (c.map.getLong(AMOUNT_OFFSET) != amount)
+        throw new IOException(file + " is a checkpoint of transfers of "
+            + Cents.toDecimal(c.map.getLong(AMOUNT_OFFSET)));
+      long s0 = c.map.getLong(c.copyOffset(0) + SEQUENCE_OFFSET);
+      long s1 = c.map.getLong(c.copyOffset(1) + SEQUENCE_OFFSET);
+      c.latest = s1 > s0 ? 1 : 0;
+      c.sequence = Math.max(s0, s1);
+      if (c.sequence == 0)
+        throw new IOException(file + " holds no checkpoint");
+      return c;
+    } catch (IOException ioe) {
+      channel.close();
+      throw ioe;
+    }
+  }
+
+  private static long fileSize(int accounts) {
+    return HEADER_SIZE + 2L * (TABLE_OFFSET + accounts * ENTRY_SIZE);
+  }
+
+  private int copyOffset(int copy) {
+    return HEADER_SIZE + copy * copySize;
+  }
+
+  private int entryOffset(int copy, int index) {
+    return copyOffset(copy) + TABLE_OFFSET + index * ENTRY_SIZE;
+  }
+
+  /** Returns the sequence number of the latest checkpoint.
+   *
+   * @return The sequence number, zero if no checkpoint was written.
+   */
+  long getSequence() {
+    return sequence;
+  }
+
+  long getTransactions() {
+    return map.getLong(copyOffset(latest) + TRANSACTIONS_OFFSET);
+  }
+
+  long getBalance(int index) {
+    return map.getLong(entryOffset(latest, index) + BALANCE);
+  }
+
+  long getStartBalance(int index) {
+    return map.getLong(entryOffset(latest, index) + START);
+  }
+
+  long getDebits(int index) {
+    return map.getLong(entryOffset(latest, index) + DEBITS);
+  }
+
+  long getCredits(int index) {
+    return map.getLong(entryOffset(latest, index) + CREDITS);
+  }
+
+  /** Writes an account of the next checkpoint.
+   *
+   * @param index The account index.
+   * @param balance The balance in cents.
+   * @param start The start balance in cents.
+   * @param debits The number of debits.
+   * @param credits The number of credits.
+   */
+  void put(int index, long balance, long start, long debits, long credits) {
+    int offset = entryOffset(1 - latest, index);
+    map.putLong(offset + BALANCE, balance);
+    map.putLong(offset + START, start);
+    map.putLong(offset + DEBITS, debits);
+    map.putLong(offset + CREDITS, credits);
+  }
+
+  /** Completes the next checkpoint once all its accounts are written. The
+   *  table is forced before the sequence number is published and forced.
+   *
+   * @param transactions The total number of transactions.
+   */
+  void commit(long transactions) {
+    int next = 1 - latest;
+    int offset = copyOffset(next);
+    map.putLong(offset + TRANSACTIONS_OFFSET, transactions);
+    map.force(offset + TRANSACTIONS_OFFSET, copySize - TRANSACTIONS_OFFSET);
+    map.putLong(offset + SEQUENCE_OFFSET, sequence + 1);
+    map.force(offset + SEQUENCE_OFFSET, 8);
+    sequence++;
+    latest = next;
+  }
+
+  /** Closes the file, the mapping stays valid until it is collected.
+   *
+   * @throws IOException if closing failed.
+   */
+  void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,90 @@
+import java.math.BigDecimal;
+
+
+/**
+ * Fixed-point helpers for balances held as a <tt>long</tt> number of cents.
+ * All arithmetic is exact, a result that does not fit in a <tt>long</tt>
+ * raises an {@link ArithmeticException} naming the operation.
+ *
+ */
+final class Cents {
+
+  /* Number of decimal places held by a cents value */
+  final static int SCALE = 2;
+
+  private Cents() {
+  }
+
+  /** Converts a decimal amount to cents.
+   *
+   * @param v The amount, with at most two decimal places.
+   * @return The amount in cents.
+   * @throws ArithmeticException if the amount has more than two decimal
+   *         places or is out of range.
+   */
+  static long valueOf(BigDecimal v) {
+    try {
+      return v.movePointRight(SCALE).longValueExact();
+    } catch (ArithmeticException ae) {
+      throw new ArithmeticException("Amount " + v.toPlainString()
+          + " cannot be held as cents: " + ae.getMessage());
+    }
+  }
+
+  /** Converts cents to a decimal amount with a scale of two.
+   *
+   * @param cents The amount in cents.
+   * @return The decimal amount.
+   */
+  static BigDecimal toDecimal(long cents) {
+    return BigDecimal.valueOf(cents, SCALE);
+  }
+
+  /** Adds two cents values.
+   *
+   * @param a The first value.
+   * @param b The second value.
+   * @return The sum.
+   * @throws ArithmeticException if the sum is out of range.
+   */
+  static long add(long a, long b) {
+    long r = a + b;
+    if (((a ^ r) & (b ^ r)) < 0)
+      throw outOfRange(a, "+", b);
+    return r;
+  }
+
+  /** Subtracts a cents value from another.
+   *
+   * @param a The value to subtract from.
+   * @param b The value to subtract.
+   * @return The difference.
+   * @throws ArithmeticException if the difference is out of range.
+   */
+  static long subtract(long a, long b) {
+    long r = a - b;
+    if (((a ^ b) & (a ^ r)) < 0)
+      throw outOfRange(a, "-", b);
+    return r;
+  }
+
+  /** Multiplies a cents value by a count.
+   *
+   * @param a The cents value.
+   * @param n The count.
+   * @return The product.
+   * @throws ArithmeticException if the product is out of range.
+   */
+  static long multiply(long a, long n) {
+    long hi = Math.multiplyHigh(a, n);
+    long r = a * n;
+    if ((hi == 0 && r >= 0) || (hi == -1 && r < 0))
+      return r;
+    throw outOfRange(a, "*", n);
+  }
+
+  private static ArithmeticException outOfRange(long a, String op, long b) {
+    return new ArithmeticException("Cents value out of range: " + a + " "
+        + op + " " + b);
+  }
+}
@@ -0,0 +1,139 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, laid out like an
+ * HdrHistogram: values below 128 are counted exactly and every power of two
+ * above that is split into 64 sub-buckets, so a reported value is within
+ * 1/64 of the recorded one. Recording does not allocate or lock, the
+ * counts are striped across atomic arrays selected by the recording thread
+ * and only summed when the histogram is read.
+ *
+ */
+final class LatencyHistogram {
+
+  /* Values below 2^SUB_BITS are counted exactly */
+  private final static int SUB_BITS = 7;
+
+  /* Number of exactly counted values, twice the sub-buckets per power of two
+     above them */
+  private final static int SUB_COUNT = 1 << SUB_BITS;
+
+  /* Largest value tracked, about 68 seconds, larger values are clamped */
+  private final static long MAX_VALUE = (1L << 36) - 1;
+
+  /* Number of counts, one past the index of MAX_VALUE */
+  private final static int LENGTH = index(MAX_VALUE) + 1;
+
+  /* Name printed with the percentiles */
+  private final String name;
+
+  /* Striped counts, stripe s holds counts at [s * LENGTH, (s + 1) * LENGTH) */
+  private final AtomicLongArray counts;
+
+  /* Mask selecting a stripe from the identity hash of a thread */
+  private final int stripeMask;
+
+  /* Number of recorded values and the largest recorded value */
+  private final LongAdder total = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  LatencyHistogram(String name) {
+    this.name = name;
+    int stripes = Integer.highestOneBit(
+        Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+    stripeMask = stripes - 1;
+    counts = new AtomicLongArray(stripes * LENGTH);
+  }
+
+  /** Returns the count index of a value. Values below SUB_COUNT have an
+   *  index each, above that each power of two has SUB_COUNT / 2 indexes.
+   *
+   * @param v The non-negative value.
+   * @return The count index.
+   */
+  private static int index(long v) {
+    int bucket = 63 - Long.numberOfLeadingZeros(v | (SUB_COUNT - 1))
+        - (SUB_BITS - 1);
+    int sub = (int) (v >>> bucket);
+    return (bucket << (SUB_BITS - 1)) + sub;
+  }
+
+  /** Returns the largest value counted at an index.
+   *
+   * @param index The count index.
+   * @return The highest value equivalent to the index.
+   */
+  private static long highestValue(int index) {
+    int bucket = (index >> (SUB_BITS - 1)) - 1;
+    if (bucket <= 0)
+      return index;
+    long sub = (index & (SUB_COUNT / 2 - 1)) + SUB_COUNT / 2;
+    return ((sub + 1) << bucket) - 1;
+  }
+
+  /** Records a latency.
+   *
+   * @param nanos The latency in nanoseconds, negative values count as zero.
+   */
+  void record(long nanos) {
+    record(nanos, 1);
+  }
+
+  /** Records a latency shared by several operations, such as the transfers
+   *  of a batch.
+   *
+   * @param nanos The latency in nanoseconds, negative values count as zero.
+   * @param count The number of operations with this latency.
+   */
+  void record(long nanos, long count) {
+    long v = Math.min(Math.max(nanos, 0), MAX_VALUE);
+    int h = System.identityHashCode(Thread.currentThread());
+    int stripe = (h ^ (h >>> 16)) & stripeMask;
+    counts.getAndAdd(stripe * LENGTH + index(v), count);
+    total.add(count);
+    max.accumulate(v);
+  }
+
+  long getCount() {
+    return total.sum();
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  /** Returns the value at or below which the specified percentage of the
+   *  recorded values fall.
+   *
+   * @param percentile The percentile, between 0 and 100.
+   * @return The value at the percentile, or zero if nothing was recorded.
+   */
+  long getValueAtPercentile(double percentile) {
+    long[] merged = new long[LENGTH];
+    long n = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      merged[i % LENGTH] += counts.get(i);
+      n += counts.get(i);
+    }
+    long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < LENGTH; i++) {
+      seen += merged[i];
+      if (seen >= rank)
+        return Math.min(highestValue(i), getMax());
+    }
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    return name + ": count=" + getCount()
+        + ", p50=" + getValueAtPercentile(50)
+        + ", p99=" + getValueAtPercentile(99)
+        + ", p999=" + getValueAtPercentile(99.9)
+        + ", max=" + getMax();
+  }
+}
@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Bounded lock-free queue of ints with any number of producers and a single
+ * consumer, a ring buffer in the style of Dmitry Vyukov's bounded queue.
+ * Every slot carries a sequence number that tells producers and the consumer
+ * whether it is free or filled, producers claim slots with a compare-and-set
+ * on the tail. Offering and polling do not allocate.
+ *
+ */
+final class MpscIntQueue {
+
+  /* Value returned by poll() when the queue is empty */
+  final static int EMPTY = Integer.MIN_VALUE;
+
+  private final int mask;
+  private final int[] values;
+
+  /* Slot sequences, a slot is free for position p when its sequence is p and
+     filled for it when the sequence is p + 1 */
+  private final AtomicLongArray sequences;
+
+  /* Next position to claim by a producer */
+  private final AtomicLong tail = new AtomicLong();
+
+  /* Next position to poll, only accessed by the consumer */
+  private long head;
+
+  /** Creates an empty queue.
+   *
+   * @param capacity The capacity, rounded up to a power of two.
+   */
+  MpscIntQueue(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    mask = size - 1;
+    values = new int[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+      sequences.set(i, i);
+  }
+
+  /** Adds a value unless the queue is full. May be called by any thread.
+   *
+   * @param v The value, not EMPTY.
+   * @return <tt>false</tt> if the queue is full.
+   */
+  boolean offer(int v) {
+    long pos = tail.get();
+    while (true) {
+      int slot = (int) pos & mask;
+      long dif = sequences.getAcquire(slot) - pos;
+      if (dif == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          values[slot] = v;
+          sequences.setRelease(slot, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      } else if (dif < 0) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+  }
+
+  /** Removes the oldest value. Must only be called by the consumer.
+   *
+   * @return The value, or EMPTY if the queue is empty.
+   */
+  int poll() {
+    int slot = (int) head & mask;
+    if (sequences.getAcquire(slot) != head + 1)
+      return EMPTY;
+    int v = values[slot];
+    sequences.setRelease(slot, head + mask + 1);
+    head++;
+    return v;
+  }
+}
@@ -0,0 +1,107 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+/**
+ * Table of accounts held outside the Java heap in direct buffers, so tens of
+ * millions of accounts neither cost an object each nor add to the work of
+ * the garbage collector. Every account is a fixed-width entry of four longs:
+ * the balance, the start balance, the debit count and the credit count. The
+ * fields are accessed through a VarHandle view of the buffers, which gives
+ * volatile reads and atomic updates. A direct buffer holds less than 2GB,
+ * so the table is split into chunks.
+ *
+ */
+final class OffHeapAccounts {
+
+  /* Fields of an account entry */
+  final static int BALANCE = 0, START = 1, DEBITS = 2, CREDITS = 3;
+
+  /* Number of fields of an account entry */
+  final static int FIELDS = 4;
+
+  /* Size in bytes of a packed account entry */
+  final static int ACCOUNT_SIZE = FIELDS * Long.BYTES;
+
+  /* Size in bytes of a chunk as a power of two, 1GB */
+  private final static int CHUNK_SIZE_BITS = 30;
+
+  /* View of a buffer as longs, atomic updates need aligned fields */
+  private final static VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class,
+          ByteOrder.nativeOrder());
+
+  private final ByteBuffer[] chunks;
+
+  /* Longs per account entry, and accounts per chunk as a power of two */
+  private final int stride, chunkBits, chunkMask;
+
+  /** Allocates a table of zeroed accounts.
+   *
+   * @param accounts The number of accounts.
+   * @param stride The longs per account entry, a power of two of at least
+   *        FIELDS. Entries are aligned to their size, so entries padded to
+   *        whole cache lines do not share them.
+   * @throws OutOfMemoryError if the direct memory limit is reached.
+   */
+  OffHeapAccounts(int accounts, int stride) {
+    this.stride = stride;
+    int entrySize = stride * Long.BYTES;
+    chunkBits = CHUNK_SIZE_BITS - Integer.numberOfTrailingZeros(entrySize);
+    chunkMask = (1 << chunkBits) - 1;
+    chunks = new ByteBuffer[(int) ((accounts + (long) chunkMask)
+                                   >>> chunkBits)];
+    for (int c = 0; c < chunks.length; c++) {
+      int n = Math.min(chunkMask + 1, accounts - (c << chunkBits));
+      chunks[c] = ByteBuffer.allocateDirect(n * entrySize + entrySize - 1)
+          .alignedSlice(entrySize);
+    }
+  }
+
+  private int offset(int index, int field) {
+    return ((index & chunkMask) * stride + field) * Long.BYTES;
+  }
+
+  long get(int index, int field) {
+    return (long) LONGS.getVolatile(chunks[index >>> chunkBits],
+        offset(index, field));
+  }
+
+  /** Sets a field without ordering guarantees, only used before the table
+   *  is shared with the tasks.
+   *
+   * @param index The account index.
+   * @param field The field.
+   * @param value The new value.
+   */
+  void set(int index, int field, long value) {
+    LONGS.set(chunks[index >>> chunkBits], offset(index, field), value);
+  }
+
+  /** Atomically sets a field if it holds the expected value.
+   *
+   * @param index The account index.
+   * @param field The field.
+   * @param expected The expected value.
+   * @param value The new value.
+   * @return The value held, the expected value if the field was set.
+   */
+  long compareAndExchange(int index, int field, long expected, long value) {
+    return (long) LONGS.compareAndExchange(chunks[index >>> chunkBits],
+        offset(index, field), expected, value);
+  }
+
+  /** Atomically adds to a field.
+   *
+   * @param index The account index.
+   * @param field The field.
+   * @param delta The value to add.
+   * @return The previous value.
+   */
+  long getAndAdd(int index, int field, long delta) {
+    return (long) LONGS.getAndAdd(chunks[index >>> chunkBits],
+        offset(index, field), delta);
+  }
+}
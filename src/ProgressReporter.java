@@ -0,0 +1,114 @@
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Samples the simulator counters at a fixed interval from a daemon thread
+ * and prints the progress of each interval as a CSV or JSON line. Only sums
+ * of the striped counters are read, so the transfer tasks are not slowed
+ * down.
+ *
+ */
+final class ProgressReporter implements Runnable {
+
+  /**
+   * The formats a progress line can be printed in.
+   *
+   */
+  enum Format {
+    /* Comma separated values preceded by a header line */
+    CSV,
+    /* A JSON object per line */
+    JSON
+  }
+
+  /* CSV header, also the JSON field names */
+  private final static String[] FIELDS = { "elapsed_ms", "transfers",
+      "transfers_per_s", "conflicts", "conflicts_per_s" };
+
+  private final long intervalMillis;
+  private final Format format;
+  private final PrintStream out;
+  private final LongSupplier transfers, conflicts;
+  private final ScheduledExecutorService timer;
+
+  /* Time and counter values of the previous sample, only accessed by the
+     timer thread once started until it has terminated */
+  private long startNanos, lastNanos, lastTransfers, lastConflicts;
+
+  /** Creates a reporter, it does not sample until started.
+   *
+   * @param intervalMillis The sampling interval in milliseconds.
+   * @param format The format of the progress lines.
+   * @param out The stream to print to.
+   * @param transfers Supplies the number of completed transfers.
+   * @param conflicts Supplies the number of failed transfer attempts.
+   */
+  ProgressReporter(long intervalMillis, Format format, PrintStream out,
+                   LongSupplier transfers, LongSupplier conflicts) {
+    this.intervalMillis = intervalMillis;
+    this.format = format;
+    this.out = out;
+    this.transfers = transfers;
+    this.conflicts = conflicts;
+    timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "progress-reporter");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /** Prints the CSV header if needed and starts sampling. */
+  void start() {
+    if (format == Format.CSV)
+      out.println(String.join(",", FIELDS));
+    startNanos = lastNanos = System.nanoTime();
+    lastTransfers = transfers.getAsLong();
+    lastConflicts = conflicts.getAsLong();
+    timer.scheduleAtFixedRate(this, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops sampling and prints the final, possibly partial, interval once
+   *  the timer thread has terminated, so a sample in progress completes
+   *  first and the lines are never interleaved.
+   *
+   * @throws InterruptedException if interrupted waiting for the timer.
+   */
+  void stop() throws InterruptedException {
+    timer.shutdownNow();
+    timer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    run();
+  }
+
+  @Override
+  public void run() {
+    long now = System.nanoTime();
+    long t = transfers.getAsLong();
+    long c = conflicts.getAsLong();
+    double seconds = Math.max(1, now - lastNanos) / 1e9;
+    long[] values = { TimeUnit.NANOSECONDS.toMillis(now - startNanos), t,
+        Math.round((t - lastTransfers) / seconds), c,
+        Math.round((c - lastConflicts) / seconds) };
+    lastNanos = now;
+    lastTransfers = t;
+    lastConflicts = c;
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < FIELDS.length; i++) {
+      if (format == Format.CSV) {
+        line.append(i == 0 ? "" : ",").append(values[i]);
+      } else {
+        line.append(i == 0 ? "{" : ",").append('"').append(FIELDS[i])
+            .append("\":").append(values[i]);
+      }
+    }
+    out.println(format == Format.CSV ? line : line.append('}'));
+  }
+}
@@ -0,0 +1,162 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+
+/**
+ * Java Flight Recorder events of the simulator, recorded alongside the GC
+ * and lock events of the JVM with <tt>-XX:StartFlightRecording</tt>. The
+ * tasks poll whether the per transfer events are enabled along with their
+ * stop flag and only create them while a recording enables them, an event
+ * passed between methods escapes and would otherwise be allocated for every
+ * transfer. Per transfer events are only committed above a duration
+ * threshold, which a recording can lower, so enabling them does not flood
+ * the recording or slow the transfers. Stack traces are off by default.
+ *
+ */
+final class SimulatorEvents {
+
+  /* Types of the per transfer events, null if the JVM has no flight
+     recorder */
+  private final static EventType TRANSFER_TYPE = eventType(Transfer.class);
+  private final static EventType CONTENTION_TYPE =
+      eventType(LockContention.class);
+
+  private SimulatorEvents() {
+  }
+
+  private static EventType eventType(Class<? extends Event> eventClass) {
+    try {
+      return EventType.getEventType(eventClass);
+    } catch (IllegalStateException ise) {
+      return null;
+    }
+  }
+
+  /** Returns whether a recording enables Transfer events.
+   *
+   * @return <tt>true</tt> if the events should be created.
+   */
+  static boolean isTransferEnabled() {
+    return TRANSFER_TYPE != null && TRANSFER_TYPE.isEnabled();
+  }
+
+  /** Returns whether a recording enables LockContention events.
+   *
+   * @return <tt>true</tt> if the events should be created.
+   */
+  static boolean isContentionEnabled() {
+    return CONTENTION_TYPE != null && CONTENTION_TYPE.isEnabled();
+  }
+
+  /**
+   * A transfer slower than the threshold, from drawing its accounts to
+   * applying it. Retries of the compare-and-set and optimistic engines and
+   * failed lock acquisitions are included, the latter are detailed by
+   * LockContention. Transfers applied in batches are not recorded.
+   *
+   */
+  @Name("AccountSimulator.Transfer")
+  @Label("Transfer")
+  @Category("AccountSimulator")
+  @Description("Transfer from drawing its accounts to applying it")
+  @Threshold("1 ms")
+  @StackTrace(false)
+  static final class Transfer extends Event {
+    @Label("Source Account")
+    int source;
+
+    @Label("Destination Account")
+    int destination;
+
+    @Label("Legs")
+    int legs;
+
+    @Label("Attempts")
+    @Description("Lock acquisitions or commits tried")
+    int attempts;
+
+    @Label("Engine")
+    String engine;
+  }
+
+  /**
+   * The failed lock acquisitions of a transfer, from the first failure to
+   * the acquisition, backoff included. One event per contended transfer
+   * rather than per failure.
+   *
+   */
+  @Name("AccountSimulator.LockContention")
+  @Label("Lock Contention")
+  @Category("AccountSimulator")
+  @Description("Failed lock acquisitions of a transfer until it got the "
+      + "locks")
+  @Threshold("100 us")
+  @StackTrace(false)
+  static final class LockContention extends Event {
+    @Label("Source Account")
+    int source;
+
+    @Label("Destination Account")
+    int destination;
+
+    @Label("Failures")
+    int failures;
+
+    @Label("Locking")
+    String locking;
+
+    @Label("Backoff")
+    String backoff;
+  }
+
+  /**
+   * An account found empty for the first time.
+   *
+   */
+  @Name("AccountSimulator.EmptyAccount")
+  @Label("Empty Account")
+  @Category("AccountSimulator")
+  @Description("Account found empty by a transfer for the first time")
+  @StackTrace(false)
+  static final class EmptyAccount extends Event {
+    @Label("Account")
+    int account;
+
+    @Label("Empty Accounts")
+    @Description("Distinct empty accounts found so far, when counted")
+    int emptyAccounts;
+
+    @Label("Engine")
+    String engine;
+  }
+
+  /**
+   * A phase of a run: initializing the accounts, running the transfers,
+   * writing a checkpoint or auditing a snapshot.
+   *
+   */
+  @Name("AccountSimulator.RunPhase")
+  @Label("Run Phase")
+  @Category("AccountSimulator")
+  @Description("Phase of a simulator run")
+  @StackTrace(false)
+  static final class RunPhase extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Engine")
+    String engine;
+
+    @Label("Threads")
+    int threads;
+
+    @Label("Accounts")
+    int accounts;
+  }
+}
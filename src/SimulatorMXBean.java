@@ -0,0 +1,101 @@
+/**
+ * Management interface of a running simulator, registered with the platform
+ * MBean server as <tt>AccountSimulator:type=Simulator</tt> while the
+ * transfers run when <tt>--jmx=true</tt>. The counters are read without
+ * stopping the tasks, so they are approximate while the run goes on.
+ *
+ */
+public interface SimulatorMXBean {
+
+  /** Returns the transfer engine, for instance <tt>lock</tt>.
+   *
+   * @return The engine name.
+   */
+  String getEngine();
+
+  /** Returns the settings of the run: threads, accounts, amount, balance
+   *  representation, layout, locking, backoff and distributions.
+   *
+   * @return The settings, as printed at the end of the run.
+   */
+  String getConfiguration();
+
+  /** Returns the number of transfer and inquiry tasks.
+   *
+   * @return The thread count.
+   */
+  int getThreads();
+
+  /** Returns the number of tasks that have not completed yet.
+   *
+   * @return The active task count.
+   */
+  int getActiveTasks();
+
+  /** Returns the transfers completed so far in this run.
+   *
+   * @return The transfer count.
+   */
+  long getTransfers();
+
+  /** Returns the throughput since the previous read of this attribute, or
+   *  since the start of the run for the first read.
+   *
+   * @return The transfers per second.
+   */
+  long getThroughput();
+
+  /** Returns the throughput since the start of the run.
+   *
+   * @return The transfers per second.
+   */
+  long getAverageThroughput();
+
+  /** Returns the conflicts of the engine: failed lock acquisitions of the
+   *  lock engine, retried compare-and-sets of the cas and offheap engines,
+   *  full queue waits of the partitioned engine and aborts of the occ
+   *  engine.
+   *
+   * @return The conflict count.
+   */
+  long getConflicts();
+
+  /** Returns the engine statistics, as printed at the end of the run.
+   *
+   * @return The statistics.
+   */
+  String getEngineStatistics();
+
+  /** Returns the accounts with the most debits and credits, busiest first.
+   *  Every account is scanned, which takes a while with many accounts.
+   *
+   * @return The account IDs with their debits and credits.
+   */
+  String[] getHottestAccounts();
+
+  /** Returns whether the tasks are paused by pause().
+   *
+   * @return <tt>true</tt> if paused.
+   */
+  boolean isPaused();
+
+  /** Returns what stopped the run.
+   *
+   * @return The condition met, or null while the run goes on.
+   */
+  String getStopReason();
+
+  /** Pauses the tasks once their transfer in flight is applied. The stop
+   *  conditions are still evaluated and checkpoints still written while
+   *  paused, the run time keeps counting.
+   */
+  void pause();
+
+  /** Resumes the tasks paused by pause(). */
+  void resume();
+
+  /** Stops the run as if a stop condition was met, the statistics are
+   *  printed and the final checkpoint written as usual.
+   */
+  void stop();
+}
@@ -0,0 +1,143 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Optional <tt>--name=value</tt> arguments that follow the positional
+ * simulator arguments. Every option that is read is remembered so that
+ * misspelled or unsupported options can be reported.
+ *
+ */
+final class SimulatorOptions {
+
+  /* Option prefix */
+  private final static String PREFIX = "--";
+
+  /* Map of option names to their raw values */
+  private final Map<String, String> values = new HashMap<String, String>();
+
+  /* Names of the options that have been read */
+  private final Set<String> used = new HashSet<String>();
+
+  /** Parses the options starting at the specified argument index.
+   *
+   * @param args The command line arguments.
+   * @param from The index of the first option argument.
+   * @return The parsed options.
+   * @throws IllegalArgumentException if an argument is not an option.
+   */
+  static SimulatorOptions parse(String[] args, int from) {
+    SimulatorOptions options = new SimulatorOptions();
+    for (int i = from; i < args.length; i++) {
+      String arg = args[i];
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith(PREFIX) || eq <= PREFIX.length())
+        throw new IllegalArgumentException("Invalid option: " + arg
+            + ", expected " + PREFIX + "name=value");
+      options.values.put(arg.substring(PREFIX.length(), eq),
+          arg.substring(eq + 1));
+    }
+    return options;
+  }
+
+  /** Returns the value of the specified option.
+   *
+   * @param name The option name.
+   * @param def The value returned when the option is not set.
+   * @return The option value.
+   */
+  String get(String name, String def) {
+    used.add(name);
+    String v = values.get(name);
+    return v == null ? def : v;
+  }
+
+  /** Returns the value of the specified integer option.
+   *
+   * @param name The option name.
+   * @param def The value returned when the option is not set.
+   * @return The option value.
+   * @throws NumberFormatException if the value is not an integer.
+   */
+  int getInt(String name, int def) {
+    String v = get(name, null);
+    return v == null ? def : Integer.decode(v);
+  }
+
+  /** Returns the value of the specified long integer option.
+   *
+   * @param name The option name.
+   * @param def The value returned when the option is not set.
+   * @return The option value.
+   * @throws NumberFormatException if the value is not an integer.
+   */
+  long getLong(String name, long def) {
+    String v = get(name, null);
+    return v == null ? def : Long.decode(v);
+  }
+
+  /** Returns the value of the specified boolean option, either
+   *  <tt>true</tt> or <tt>false</tt>.
+   *
+   * @param name The option name.
+   * @param def The value returned when the option is not set.
+   * @return The option value.
+   * @throws IllegalArgumentException if the value is not a boolean.
+   */
+  boolean getBoolean(String name, boolean def) {
+    String v = get(name, null);
+    if (v == null)
+      return def;
+    if (v.equalsIgnoreCase("true"))
+      return true;
+    if (v.equalsIgnoreCase("false"))
+      return false;
+    throw new IllegalArgumentException("Invalid value for " + PREFIX + name
+        + ": " + v);
+  }
+
+  /** Returns the value of the specified enumerated option. Values are
+   *  matched ignoring case.
+   *
+   * @param name The option name.
+   * @param type The enum class of the option.
+   * @param def The value returned when the option is not set.
+   * @return The option value.
+   * @throws IllegalArgumentException if the value is not a constant of the
+   *         enum.
+   */
+  <E extends Enum<E>> E getEnum(String name, Class<E> type, E def) {
+    String v = get(name, null);
+    if (v == null)
+      return def;
+    for (E e : type.getEnumConstants()) {
+      if (e.name().equalsIgnoreCase(v))
+        return e;
+    }
+    throw new IllegalArgumentException("Invalid value for " + PREFIX + name
+        + ": " + v);
+  }
+
+  /** Returns whether the specified option is set, whatever its value.
+   *
+   * @param name The option name.
+   * @return <tt>true</tt> if the option is set.
+   */
+  boolean isSet(String name) {
+    return values.containsKey(name);
+  }
+
+  /** Checks that every specified option has been read.
+   *
+   * @throws IllegalArgumentException if an option was never read.
+   */
+  void checkUnknown() {
+    for (String name : values.keySet()) {
+      if (!used.contains(name))
+        throw new IllegalArgumentException("Unknown option: " + PREFIX
+            + name);
+    }
+  }
+}
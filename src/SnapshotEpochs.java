@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Epochs delimiting consistent snapshots of the accounts taken while the
+ * transfers run. A task enters the current epoch before updating accounts
+ * and exits it once done. Starting a snapshot advances the epoch and waits
+ * for the tasks still in an older epoch to exit, the snapshot then holds the
+ * updates of every older epoch and none of the newer one. Tasks only enter
+ * the new epoch once that wait is over, so updates of both epochs never
+ * interleave, which costs them at most the length of one transfer. Before
+ * updating an account in the new epoch a task saves the balance it held at
+ * the start of the epoch, unless the snapshot already read it, so the
+ * snapshot is taken one account at a time without stopping the tasks.
+ *
+ */
+final class SnapshotEpochs {
+
+  /* Slot value of a task that is not updating accounts */
+  private final static long IDLE = Long.MAX_VALUE;
+
+  /* Slots from one task to the next, a cache line pair so tasks entering
+     and exiting do not invalidate each other's slots */
+  private final static int STRIDE = 16;
+
+  /* Epoch entered by each task, or IDLE */
+  private final AtomicLongArray active;
+
+  /* Number of tasks registered so far */
+  private int tasks;
+
+  /* Current epoch, and the latest epoch no task of an older one is left
+     in */
+  private volatile long epoch, settled;
+
+  /** Creates epochs tracking a fixed number of tasks.
+   *
+   * @param maxTasks The number of tasks.
+   */
+  SnapshotEpochs(int maxTasks) {
+    active = new AtomicLongArray(maxTasks * STRIDE);
+    for (int t = 0; t < maxTasks; t++)
+      active.set(t * STRIDE, IDLE);
+  }
+
+  /** Registers a task, tasks are registered by one thread before they run.
+   *
+   * @return The index of the task.
+   */
+  int register() {
+    return tasks++;
+  }
+
+  /** Enters the current epoch before updating accounts, waiting until no
+   *  task is left in an older one. The epoch is read again once published,
+   *  so a snapshot started meanwhile either waits for this task or is seen
+   *  by it. A task must not hold account locks when entering, a task of an
+   *  older epoch may be waiting for them.
+   *
+   * @param task The index of the task.
+   * @return The epoch entered.
+   */
+  long enter(int task) {
+    while (true) {
+      long e = epoch;
+      if (settled != e) {
+        Thread.yield();
+        continue;
+      }
+      active.set(task * STRIDE, e);
+      if (epoch == e)
+        return e;
+      active.set(task * STRIDE, IDLE);
+    }
+  }
+
+  /** Exits the epoch once the updates are applied.
+   *
+   * @param task The index of the task.
+   */
+  void exit(int task) {
+    active.setRelease(task * STRIDE, IDLE);
+  }
+
+  /** Starts a snapshot. Only called by a single thread at a time.
+   *
+   * @return The new epoch, once no task is left in an older one.
+   */
+  long advance() {
+    long next = epoch + 1;
+    epoch = next;
+    for (int t = 0; t < tasks; t++) {
+      while (active.get(t * STRIDE) < next)
+        Thread.yield();
+    }
+    settled = next;
+    return next;
+  }
+}
@@ -0,0 +1,200 @@
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Conditions ending a simulation run, the first one met stops it. A
+ * condition is immutable and shared by the runs of a simulator, each run
+ * evaluates it with its own {@link Monitor}. Conditions are specified as a
+ * comma separated list of:
+ * <ul>
+ * <li><tt>empty[:k]</tt> k distinct accounts were found empty by a transfer,
+ *     defaults to 1</li>
+ * <li><tt>time:ms</tt> the run time has passed</li>
+ * <li><tt>transfers:n</tt> the number of transfers is reached</li>
+ * <li><tt>stable[:ms[:percent]]</tt> the throughput of each of the last
+ *     three windows of the given length is within the given percentage of
+ *     their mean, defaults to 1000:2</li>
+ * </ul>
+ * Without an empty condition, transfers from an empty account are skipped
+ * and the run goes on.
+ *
+ */
+final class StopCondition {
+
+  /* Longest wait of the monitoring thread between checks */
+  private final static long CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  /* Number of windows compared by the stable condition */
+  private final static int STABLE_WINDOWS = 3;
+
+  /* Default window and tolerance of the stable condition */
+  private final static long DEFAULT_WINDOW_MILLIS = 1000;
+  private final static double DEFAULT_TOLERANCE = 2;
+
+  private final String spec;
+
+  /* Empty accounts ending the run, zero for none */
+  private final int emptyAccounts;
+
+  /* Run time and transfers ending the run, zero for none */
+  private final long timeNanos, transfers;
+
+  /* Window of the stable condition, zero for none, and its tolerance as a
+     fraction of the mean */
+  private final long windowNanos;
+  private final double tolerance;
+
+  private StopCondition(String spec, int emptyAccounts, long timeNanos,
+                        long transfers, long windowNanos, double tolerance) {
+    this.spec = spec;
+    this.emptyAccounts = emptyAccounts;
+    this.timeNanos = timeNanos;
+    this.transfers = transfers;
+    this.windowNanos = windowNanos;
+    this.tolerance = tolerance;
+  }
+
+  /** Parses a stop condition specification.
+   *
+   * @param spec The specification, see the class description.
+   * @return The stop condition.
+   * @throws IllegalArgumentException if the specification is invalid.
+   */
+  static StopCondition parse(String spec) {
+    int emptyAccounts = 0;
+    long timeNanos = 0, transfers = 0, windowNanos = 0;
+    double tolerance = 0;
+    try {
+      for (String condition : spec.split(",")) {
+        String[] parts = condition.split(":");
+        String kind = parts[0].toLowerCase();
+        boolean valid;
+        if (kind.equals("empty") && parts.length <= 2) {
+          emptyAccounts = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+          valid = emptyAccounts > 0;
+        } else if (kind.equals("time") && parts.length == 2) {
+          timeNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(parts[1]));
+          valid = timeNanos > 0;
+        } else if (kind.equals("transfers") && parts.length == 2) {
+          transfers = Long.parseLong(parts[1]);
+          valid = transfers > 0;
+        } else if (kind.equals("stable") && parts.length <= 3) {
+          windowNanos = TimeUnit.MILLISECONDS.toNanos(parts.length > 1
+              ? Long.parseLong(parts[1]) : DEFAULT_WINDOW_MILLIS);
+          tolerance = (parts.length > 2 ? Double.parseDouble(parts[2])
+                                         : DEFAULT_TOLERANCE) / 100;
+          valid = windowNanos > 0 && tolerance > 0;
+        } else {
+          valid = false;
+        }
+        if (!valid)
+          throw new IllegalArgumentException("Invalid stop condition: "
+              + condition);
+      }
+    } catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException("Invalid stop condition: " + spec);
+    }
+    return new StopCondition(spec, emptyAccounts, timeNanos, transfers,
+        windowNanos, tolerance);
+  }
+
+  /** Returns the number of distinct empty accounts ending the run.
+   *
+   * @return The number of accounts, zero if empty accounts do not stop the
+   *         run.
+   */
+  int getEmptyAccounts() {
+    return emptyAccounts;
+  }
+
+  /** Returns this condition with the run time bounded as well.
+   *
+   * @param nanos The maximum run time in nanoseconds.
+   * @return The bounded condition.
+   */
+  StopCondition withTimeLimit(long nanos) {
+    if (timeNanos > 0 && timeNanos <= nanos)
+      return this;
+    return new StopCondition(spec, emptyAccounts, nanos, transfers,
+        windowNanos, tolerance);
+  }
+
+  /** Starts monitoring a run.
+   *
+   * @return A new monitor, the run time counts from now.
+   */
+  Monitor newMonitor() {
+    return new Monitor(System.nanoTime());
+  }
+
+  @Override
+  public String toString() {
+    return spec;
+  }
+
+  /**
+   * Evaluates the time, transfer and stable conditions of a single run. Only
+   * used by the thread monitoring the run.
+   *
+   */
+  final class Monitor {
+    private final long startNanos;
+
+    /* Start and transfers at the start of the current stable window */
+    private long windowStart, windowTransfers;
+
+    /* Throughput of the last windows, in a ring */
+    private final double[] rates = new double[STABLE_WINDOWS];
+    private int windows;
+
+    private Monitor(long startNanos) {
+      this.startNanos = startNanos;
+      windowStart = startNanos;
+    }
+
+    /** Checks the conditions.
+     *
+     * @param now The current nano time.
+     * @param completed The transfers completed so far.
+     * @return The condition met, or null if the run goes on.
+     */
+    String check(long now, long completed) {
+      if (timeNanos > 0 && now - startNanos >= timeNanos)
+        return "time";
+      if (transfers > 0 && completed >= transfers)
+        return "transfers";
+      if (windowNanos > 0 && now - windowStart >= windowNanos) {
+        rates[windows++ % STABLE_WINDOWS] = (completed - windowTransfers)
+            / (double) (now - windowStart);
+        windowStart = now;
+        windowTransfers = completed;
+        if (windows >= STABLE_WINDOWS && isStable())
+          return "stable";
+      }
+      return null;
+    }
+
+    private boolean isStable() {
+      double mean = 0;
+      for (double r : rates)
+        mean += r / STABLE_WINDOWS;
+      for (double r : rates) {
+        if (Math.abs(r - mean) > tolerance * mean)
+          return false;
+      }
+      return mean > 0;
+    }
+
+    /** Returns how long to wait before the next check.
+     *
+     * @param now The current nano time.
+     * @return The wait in nanoseconds, never more than CHECK_NANOS.
+     */
+    long nanosUntilCheck(long now) {
+      long wait = CHECK_NANOS;
+      if (timeNanos > 0)
+        wait = Math.min(wait, startNanos + timeNanos - now);
+      return Math.max(0, wait);
+    }
+  }
+}
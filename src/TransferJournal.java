@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Binary journal of transfers written through a FileChannel. Every transfer
+ * is one fixed-width little-endian record of the source account ID, the
+ * destination account ID and the amount in cents.
+ *
+ * Each transfer task appends through its own {@link Appender} into a
+ * preallocated direct buffer. A full buffer is handed to the writer thread,
+ * which writes every buffer queued at that time with one gathering write and
+ * then syncs according to the sync policy, so concurrent tasks share a
+ * commit. Buffers come from a fixed pool, a task waits for a free buffer
+ * when the writer falls behind. Appending does not allocate.
+ *
+ * With the none policy the journal is write-behind, records stay in the
+ * buffer of their task until it is full. With the other policies a task
+ * completes a transfer with {@link Appender#awaitSync()}, which hands the
+ * partly filled buffer to the writer and waits for the sync covering it, so
+ * no record stays unsynced longer than the policy allows and the run
+ * throughput includes the cost of the syncs.
+ *
+ */
+final class TransferJournal {
+
+  /**
+   * When the writer forces the journal to the storage device.
+   *
+   */
+  enum Sync {
+    /* Never, the operating system decides */
+    NONE,
+    /* When the sync interval has passed since the last sync */
+    INTERVAL,
+    /* When the records written since the last sync reach the sync count, or
+       no more records are queued as their tasks all wait for the sync */
+    EVERY
+  }
+
+  /* Size of a record: source ID, destination ID and amount */
+  final static int RECORD_SIZE = 4 + 4 + 8;
+
+  /* Longest wait of the writer for a buffer, bounds the interval syncs */
+  private final static long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final FileChannel channel;
+  private final Sync sync;
+
+  /* Interval between syncs in nanoseconds, and records between syncs */
+  private final long syncNanos, syncRecords;
+
+  /* Blocks waiting to be written, and blocks free to fill */
+  private final BlockingQueue<Block> full, free;
+
+  /* The appenders created, flushed when the journal is closed and released
+     by the writer after each sync */
+  private final Appender[] appenders;
+  private int appenderCount;
+
+  private final Thread writer;
+
+  /* Set to stop the writer once the full buffers are written */
+  private volatile boolean closing;
+
+  /* First write or sync failure, the writer then only recycles buffers */
+  private volatile IOException failure;
+
+  /* Written by the writer thread, read after it has terminated */
+  private long records, bytes, syncs, startNanos, endNanos;
+
+  /* Latency of each sync, and the wait of a task for the sync of its
+     records */
+  private final LatencyHistogram syncLatency = new LatencyHistogram("fsync");
+  private final LatencyHistogram commitLatency =
+      new LatencyHistogram("commit");
+
+  /** Opens the journal, truncating an existing file, and starts the writer.
+   *
+   * @param file The journal file.
+   * @param sync The sync policy.
+   * @param syncMillis The interval of the INTERVAL policy in milliseconds.
+   * @param syncRecords The record count of the EVERY policy.
+   * @param bufferSize The size of a buffer in bytes.
+   * @param appenders The number of appenders that will be created.
+   * @throws IOException if the file cannot be opened.
+   */
+  TransferJournal(Path file, Sync sync, long syncMillis, long syncRecords,
+                  int bufferSize, int appenders) throws IOException {
+    this.sync = sync;
+    this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+    this.syncRecords = syncRecords;
+    int capacity = bufferSize / RECORD_SIZE * RECORD_SIZE;
+    int buffers = appenders * 2;
+    full = new ArrayBlockingQueue<Block>(buffers);
+    free = new ArrayBlockingQueue<Block>(buffers);
+    for (int i = 0; i < buffers; i++) {
+      free.add(new Block(ByteBuffer.allocateDirect(capacity)
+          .order(ByteOrder.LITTLE_ENDIAN)));
+    }
+    this.appenders = new Appender[appenders];
+    channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        write();
+      }
+    }, "transfer-journal");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Creates the appender of a task. Must not be called concurrently, nor
+   *  more often than the number of appenders given to the constructor.
+   *
+   * @return A new appender holding a buffer of the pool.
+   */
+  Appender newAppender() {
+    Appender a = new Appender(free.remove());
+    appenders[appenderCount++] = a;
+    return a;
+  }
+
+  private void write() {
+    Block[] blocks = new Block[full.remainingCapacity()];
+    ByteBuffer[] group = new ByteBuffer[blocks.length];
+    List<Block> drained = new ArrayList<Block>(blocks.length);
+    long unsynced = 0, lastSync = System.nanoTime();
+    startNanos = lastSync;
+    try {
+      while (true) {
+        Block first = full.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+        if (first == null && closing && full.isEmpty())
+          break;
+        int n = 0;
+        if (first != null) {
+          drained.add(first);
+          full.drainTo(drained);
+          for (Block b : drained) {
+            blocks[n] = b;
+            group[n++] = b.buffer;
+          }
+          drained.clear();
+        }
+        long written = n == 0 ? 0 : commit(group, n);
+        unsynced += written / RECORD_SIZE;
+        for (int i = 0; i < n; i++) {
+          blocks[i].owner.written = blocks[i].sequence;
+          blocks[i].buffer.clear();
+          free.add(blocks[i]);
+          blocks[i] = null;
+          group[i] = null;
+        }
+        long now = System.nanoTime();
+        if (unsynced > 0
+            && (sync == Sync.EVERY
+                && (unsynced >= syncRecords || full.isEmpty())
+                || sync == Sync.INTERVAL && now - lastSync >= syncNanos)) {
+          force();
+          unsynced = 0;
+          lastSync = System.nanoTime();
+          release();
+        } else if (failure != null) {
+          release();
+        }
+      }
+      if (unsynced > 0 && sync != Sync.NONE)
+        force();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    release();
+    endNanos = System.nanoTime();
+  }
+
+  /** Wakes the tasks waiting for records that are now synced, or that will
+   *  never be once a write or sync failed, the failure is reported when the
+   *  journal is closed.
+   */
+  private void release() {
+    if (sync == Sync.NONE)
+      return;
+    for (Appender a : appenders) {
+      if (a != null && a.synced < a.written) {
+        a.synced = a.written;
+        LockSupport.unpark(a.waiter);
+      }
+    }
+  }
+
+  /** Writes a group of buffers unless an earlier write failed.
+   *
+   * @param group The filled buffers, flipped for reading.
+   * @param n The number of buffers.
+   * @return The number of bytes written.
+   */
+  private long commit(ByteBuffer[] group, int n) {
+    if (failure != null)
+      return 0;
+    long written = 0;
+    try {
+      long remaining = 0;
+      for (int i = 0; i < n; i++)
+        remaining += group[i].remaining();
+      while (written < remaining)
+        written += channel.write(group, 0, n);
+    } catch (IOException ioe) {
+      failure = ioe;
+    }
+    records += written / RECORD_SIZE;
+    bytes += written;
+    return written;
+  }
+
+  private void force() {
+    if (failure != null)
+      return;
+    long start = System.nanoTime();
+    try {
+      channel.force(false);
+    } catch (IOException ioe) {
+      failure = ioe;
+    }
+    syncLatency.record(System.nanoTime() - start);
+    syncs++;
+  }
+
+  /** Flushes every appender, waits for the writer to write and sync them and
+   *  closes the file. Must only be called once no task appends any more.
+   *
+   * @throws IOException if writing, syncing or closing failed.
+   * @throws InterruptedException if interrupted waiting for the writer.
+   */
+  void close() throws IOException, InterruptedException {
+    for (int i = 0; i < appenderCount; i++)
+      appenders[i].flush();
+    closing = true;
+    writer.join();
+    channel.close();
+    if (failure != null)
+      throw failure;
+  }
+
+  /** Returns the journal statistics, valid once the journal is closed.
+   *
+   * @return The statistics formatted for the run report.
+   */
+  String getStatistics() {
+    double seconds = Math.max(1, endNanos - startNanos) / 1e9;
+    return "journal: " + sync.name().toLowerCase() + ", records: " + records
+        + ", " + Math.round(records / seconds) + " records/s, "
+        + String.format("%.1f", bytes / seconds / (1 << 20)) + " MB/s"
+        + ", fsyncs: " + syncs;
+  }
+
+  LatencyHistogram getSyncLatency() {
+    return syncLatency;
+  }
+
+  LatencyHistogram getCommitLatency() {
+    return commitLatency;
+  }
+
+  /**
+   * A buffer of the pool with the appender that handed it to the writer
+   * last, and the sequence number it was handed with.
+   *
+   */
+  private static final class Block {
+    private final ByteBuffer buffer;
+    private Appender owner;
+    private long sequence;
+
+    private Block(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Appends the records of a single task.
+   *
+   */
+  final class Appender {
+    private Block block;
+
+    /* Blocks handed to the writer so far, the sequence of the last one */
+    private long handed;
+
+    /* Sequence of the last block written, only used by the writer */
+    private long written;
+
+    /* Sequence of the last block synced, or written before a failure */
+    private volatile long synced;
+
+    /* Task waiting in awaitSync(), null otherwise */
+    private volatile Thread waiter;
+
+    private Appender(Block block) {
+      this.block = block;
+    }
+
+    /** Appends a transfer record, handing the buffer to the writer when it
+     *  is full. Must not be called with account locks held, it may wait for
+     *  a free buffer.
+     *
+     * @param srcID The source account ID.
+     * @param destID The destination account ID.
+     * @param cents The amount in cents.
+     * @throws InterruptedException if interrupted waiting for a buffer.
+     */
+    void append(int srcID, int destID, long cents)
+        throws InterruptedException {
+      ByteBuffer buffer = block.buffer;
+      buffer.putInt(srcID).putInt(destID).putLong(cents);
+      if (!buffer.hasRemaining())
+        hand();
+    }
+
+    /** Completes the records appended so far: unless the policy is none,
+     *  hands them to the writer and waits until they are synced. Must not be
+     *  called with account locks held.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void awaitSync() throws InterruptedException {
+      if (sync == Sync.NONE)
+        return;
+      long started = System.nanoTime();
+      if (block.buffer.position() > 0)
+        hand();
+      long target = handed;
+      if (synced < target) {
+        waiter = Thread.currentThread();
+        try {
+          while (synced < target) {
+            LockSupport.park(this);
+            if (Thread.interrupted())
+              throw new InterruptedException();
+          }
+        } finally {
+          waiter = null;
+        }
+      }
+      commitLatency.record(System.nanoTime() - started);
+    }
+
+    /** Hands the buffer to the writer and takes a free one.
+     *
+     * @throws InterruptedException if interrupted waiting for a buffer.
+     */
+    private void hand() throws InterruptedException {
+      handOff();
+      block = free.take();
+    }
+
+    private void handOff() {
+      block.buffer.flip();
+      block.owner = this;
+      block.sequence = ++handed;
+      full.add(block);
+    }
+
+    private void flush() {
+      if (block.buffer.position() > 0) {
+        handOff();
+        block = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Unsynchronized SplitMix64 generator owned by a single transfer task. It
+ * does not allocate, and tasks created from the same seed draw the same
+ * sequences, so account selection is reproducible.
+ *
+ */
+final class TransferRandom {
+
+  /* Odd constant derived from the golden ratio, the SplitMix64 increment */
+  private final static long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  /* Salt of the seed of valueAt(), so its stream is not the sequence of
+     task 0, the fractional part of the square root of 2 */
+  private final static long VALUE_SALT = 0x6a09e667f3bcc908L;
+
+  private long state;
+
+  /** Creates the generator of a task.
+   *
+   * @param seed The run seed.
+   * @param task The index of the task, so every task gets its own sequence.
+   */
+  TransferRandom(long seed, int task) {
+    state = mix(seed + task * GOLDEN_GAMMA);
+  }
+
+  /** Returns a value in <tt>[0, bound)</tt> determined by the seed and a
+   *  counter only, the counter-th value of a SplitMix64 stream of the
+   *  seed. The stream is salted so it differs from the sequences of the
+   *  tasks created from the same seed. Values can be drawn in any order and
+   *  from any thread. The bias towards lower values is below
+   *  <tt>bound / 2^32</tt>.
+   *
+   * @param seed The seed.
+   * @param counter The position in the stream.
+   * @param bound The positive upper bound.
+   * @return The value.
+   */
+  static int valueAt(long seed, long counter, int bound) {
+    long z = mix(mix(seed ^ VALUE_SALT) + (counter + 1) * GOLDEN_GAMMA);
+    return (int) ((z >>> 32) * bound >>> 32);
+  }
+
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  long nextLong() {
+    return mix(state += GOLDEN_GAMMA);
+  }
+
+  /** Returns a uniformly distributed value in <tt>[0, 1)</tt>.
+   *
+   * @return The next value.
+   */
+  double nextDouble() {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  /** Returns a uniformly distributed value in <tt>[0, bound)</tt> using
+   *  Lemire's multiply-shift, which only retries on a rare biased draw.
+   *
+   * @param bound The positive upper bound.
+   * @return The next value.
+   */
+  int nextInt(int bound) {
+    long m = (nextLong() >>> 32) * bound;
+    if ((m & 0xffffffffL) < bound) {
+      long threshold = (1L << 32) % bound;
+      while ((m & 0xffffffffL) < threshold)
+        m = (nextLong() >>> 32) * bound;
+    }
+    return (int) (m >>> 32);
+  }
+
+  /** Returns a uniformly distributed value in <tt>[0, bound)</tt> other than
+   *  the excluded one, in a single draw.
+   *
+   * @param bound The upper bound, at least two.
+   * @param exclude The value not to return, in <tt>[0, bound)</tt>.
+   * @return The next value.
+   */
+  int nextIntExcluding(int bound, int exclude) {
+    int v = nextInt(bound - 1);
+    return v >= exclude ? v + 1 : v;
+  }
+}